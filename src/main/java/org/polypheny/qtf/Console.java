@@ -20,8 +20,10 @@ package org.polypheny.qtf;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import lombok.extern.slf4j.Slf4j;
+import org.polypheny.qtf.fuse.ResultFS.Layout;
 import org.polypheny.qtf.web.Result;
 
 
@@ -44,12 +46,38 @@ public class Console extends QueryInterface {
                 String query = br.readLine();
                 String lowerCase = query.toLowerCase();
                 Pattern isIdentifier = Pattern.compile( "^(\\w+)(\\.\\w+)?$" );
+                Matcher named = Pattern.compile( "^(?:(rows|columns)\\s+)?([\\w.-]+)\\s*:\\s*(.+)$", Pattern.DOTALL | Pattern.CASE_INSENSITIVE ).matcher( query );
                 if ( lowerCase.equals( "help" ) ) {
                     System.out.print( "Options:\n'commit': Commit all changes in the file system.\n"
+                            + "'commit name': Commit the changes in the folder of a result, e.g. 'commit q1'.\n"
+                            + "'unmount name': Remove the folder of a result, e.g. 'unmount q1'.\n"
+                            + "'refresh name': Run the query of a folder again and update the folder with the changed rows.\n"
                             + "schema.table: Enter a table identifier (e.g. public.depts) to select all rows from that table and to be able to commit changes in the file system.\n"
-                            + "SELECT query: Enter any SELECT query. The result will be mapped to the file system.\n" );
-                } else if ( lowerCase.equals( "commit" ) ) {
-                    Result result = super.commit();
+                            + "SELECT query: Enter any SELECT query. The result will be mapped to the file system.\n"
+                            + "name: query: Map the result of a query or table to a folder with the given name, e.g. 'depts: public.depts'.\n"
+                            + "columns name: query: Map the result to a folder per column with a file per row, e.g. 'columns depts: public.depts'.\n"
+                            + "'browse schema.table': Map a table without its rows. The rows are queried by path, e.g. /public.depts/by/name=Sales or /public.depts/pk/1.\n"
+                            + "'browse name: schema.table': Map a table without its rows to a folder with the given name.\n" );
+                } else if ( lowerCase.startsWith( "unmount " ) ) {
+                    String name = query.substring( "unmount ".length() ).trim();
+                    if ( !super.unmount( name ) ) {
+                        System.out.println( "There is no result mounted in /" + name );
+                    }
+                } else if ( lowerCase.startsWith( "refresh " ) ) {
+                    String name = query.substring( "refresh ".length() ).trim();
+                    if ( !super.refresh( name ) ) {
+                        System.out.println( "There is no result mounted in /" + name );
+                    }
+                } else if ( lowerCase.startsWith( "browse " ) ) {
+                    String table = query.substring( "browse ".length() ).trim();
+                    Matcher browseNamed = Pattern.compile( "^([\\w.-]+)\\s*:\\s*(.+)$" ).matcher( table );
+                    String name = browseNamed.matches()
+                            ? super.browseTable( browseNamed.group( 1 ), browseNamed.group( 2 ).trim(), Layout.ROWS )
+                            : super.browseTable( table );
+                    System.out.println( "The table will be mapped to /" + name );
+                } else if ( lowerCase.equals( "commit" ) || lowerCase.startsWith( "commit " ) ) {
+                    String name = query.substring( "commit".length() ).trim();
+                    Result result = name.isEmpty() ? super.commit().join() : super.commit( name ).join();
                     if ( result.error != null ) {
                         System.out.println( "The commit failed: " + result.error );
                     } else {
@@ -59,25 +87,39 @@ public class Console extends QueryInterface {
                             System.out.printf( "The commit was successful. %d rows were affected.\n", result.affectedRows );
                         }
                     }
+                } else if ( named.matches() ) {
+                    Layout layout = "columns".equalsIgnoreCase( named.group( 1 ) ) ? Layout.COLUMNS : Layout.ROWS;
+                    String name = named.group( 2 );
+                    String request = named.group( 3 ).trim();
+                    if ( isIdentifier.matcher( request ).matches() ) {
+                        super.submitTableRequest( name, request, layout );
+                    } else {
+                        super.submitQueryRequest( name, request, layout );
+                    }
+                    System.out.println( "The result will be mapped to /" + name );
                 } else if ( isIdentifier.matcher( query ).matches() ) {
-                    super.submitTableRequest( query );
+                    System.out.println( "The result will be mapped to /" + super.submitTableRequest( query ) );
                 } else {
-                    super.submitQueryRequest( query );
+                    System.out.println( "The result will be mapped to /" + super.submitQueryRequest( query ) );
                 }
             } catch ( IOException e ) {
                 log.error( "Could not read line", e );
+            } catch ( IllegalArgumentException e ) {
+                System.out.println( e.getMessage() );
             }
         }
     }
 
     @Override
     public void onResultUpdate( Result result ) {
-        if ( result.error != null ) {
+        if ( result.progress != null ) {
+            System.out.println( result.progress );
+        } else if ( result.error != null ) {
             System.out.println( "The query failed" );
-        } else if ( result.data == null && result.affectedRows != null ) {
+        } else if ( !result.hasData() && result.affectedRows != null ) {
             System.out.printf( "The query was successful and affected %d rows\n", result.affectedRows );
         } else {
-            System.out.printf( "Fetched %d rows\n", result.data.length );
+            System.out.printf( "Fetched %d rows\n", result.getRowCount() );
         }
     }
 }
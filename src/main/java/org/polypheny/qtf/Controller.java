@@ -21,10 +21,12 @@ import java.awt.Desktop;
 import java.io.IOException;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import lombok.extern.slf4j.Slf4j;
+import org.polypheny.qtf.fuse.ResultFS.Layout;
 import org.polypheny.qtf.web.Result;
 
 
@@ -37,6 +39,12 @@ public class Controller extends QueryInterface {
     private Label feedback;
     @FXML
     private TextField tableId;
+    @FXML
+    private CheckBox byColumn;
+    /**
+     * Namespace of the query that was submitted last, it is refreshed by the refresh button
+     */
+    private String namespace;
 
     public Controller() {
         super();
@@ -44,24 +52,27 @@ public class Controller extends QueryInterface {
 
     @FXML
     public void submit() {
+        Layout layout = byColumn.isSelected() ? Layout.COLUMNS : Layout.ROWS;
         if ( !tableId.getText().equals( "" ) ) {
-            super.submitTableRequest( tableId.getText() );
+            namespace = super.submitTableRequest( tableId.getText(), layout );
         } else {
             String query = console.getText();
-            super.submitQueryRequest( query );
+            namespace = super.submitQueryRequest( query, layout );
         }
-        feedback.setText( "Waiting for response" );
+        feedback.setText( "Waiting for response, the result will be mapped to /" + namespace );
     }
 
     @Override
     public void onResultUpdate( Result result ) {
         final String message;
-        if ( result.error != null ) {
+        if ( result.progress != null ) {
+            message = result.progress.toString();
+        } else if ( result.error != null ) {
             message = "The query failed";
-        } else if ( result.data == null && result.affectedRows != null ) {
+        } else if ( !result.hasData() && result.affectedRows != null ) {
             message = String.format( "The query was successful and affected %d rows.", result.affectedRows );
         } else {
-            message = String.format( "Fetched %d rows\n", result.data.length );
+            message = String.format( "Fetched %d rows\n", result.getRowCount() );
         }
         printFeedback( message );
     }
@@ -75,19 +86,29 @@ public class Controller extends QueryInterface {
         }
     }
 
+    @FXML
+    public void onRefresh() {
+        if ( namespace != null && super.refresh( namespace ) ) {
+            printFeedback( "Refreshing /" + namespace );
+        }
+    }
+
     @FXML
     public void onCommit() {
-        Result result = super.commit();
-        if ( result.error != null ) {
-            printFeedback( "The commit failed. Check the console for more information." );
-            log.error( "The commit failed: " + result.error );
-        } else {
-            if ( result.affectedRows == 1 ) {
-                printFeedback( "The commit was successful. 1 row was affected." );
+        printFeedback( "Committing" );
+        // the commit runs in the background, so the UI stays responsive
+        super.commit().thenAccept( result -> {
+            if ( result.error != null ) {
+                printFeedback( "The commit failed. Check the console for more information." );
+                log.error( "The commit failed: " + result.error );
             } else {
-                printFeedback( String.format( "The commit was successful. %d rows were affected.", result.affectedRows ) );
+                if ( result.affectedRows == 1 ) {
+                    printFeedback( "The commit was successful. 1 row was affected." );
+                } else {
+                    printFeedback( String.format( "The commit was successful. %d rows were affected.", result.affectedRows ) );
+                }
             }
-        }
+        } );
     }
 
     @FXML
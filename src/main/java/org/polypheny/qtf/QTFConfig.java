@@ -41,6 +41,12 @@ public class QTFConfig {
             log.error( "Could not load properties" );
             System.exit( 1 );
         }
+        // a property can be overridden with a system property, e.g. -Dqtf.scratchDir=/tmp/scratch
+        for ( String name : System.getProperties().stringPropertyNames() ) {
+            if ( name.startsWith( "qtf." ) ) {
+                prop.setProperty( name.substring( "qtf.".length() ), System.getProperty( name ) );
+            }
+        }
     }
 
 
@@ -70,6 +76,162 @@ public class QTFConfig {
     }
 
 
+    public static boolean isLazyRows() {
+        return Boolean.parseBoolean( prop.getProperty( "lazyRows" ) );
+    }
+
+
+    public static int getLoadedRows() {
+        return Integer.parseInt( prop.getProperty( "loadedRows" ) );
+    }
+
+
+    public static int getBucketFanOut() {
+        return Integer.parseInt( prop.getProperty( "bucketFanOut" ) );
+    }
+
+
+    public static int getBucketLevels() {
+        return Integer.parseInt( prop.getProperty( "bucketLevels" ) );
+    }
+
+
+    public static boolean isBucketByPrimaryKey() {
+        return Boolean.parseBoolean( prop.getProperty( "bucketByPrimaryKey" ) );
+    }
+
+
+    public static int getBlobBlockKB() {
+        return Integer.parseInt( prop.getProperty( "blobBlockKB" ) );
+    }
+
+
+    public static int getBlobReadAheadKB() {
+        return Integer.parseInt( prop.getProperty( "blobReadAheadKB" ) );
+    }
+
+
+    public static int getBlobCacheMB() {
+        return Integer.parseInt( prop.getProperty( "blobCacheMB" ) );
+    }
+
+
+    public static int getBlobCacheDiskMB() {
+        return Integer.parseInt( prop.getProperty( "blobCacheDiskMB" ) );
+    }
+
+
+    public static File getBlobCacheDir() {
+        String dir = prop.getProperty( "blobCacheDir", "" ).trim();
+        if ( dir.isEmpty() ) {
+            return new File( System.getProperty( "user.home" ), ".polypheny" + File.separator + "qtf-cache" );
+        }
+        return new File( dir );
+    }
+
+
+    public static int getSpillFileMB() {
+        return Integer.parseInt( prop.getProperty( "spillFileMB" ) );
+    }
+
+
+    public static int getSpillTotalMB() {
+        return Integer.parseInt( prop.getProperty( "spillTotalMB" ) );
+    }
+
+
+    public static File getScratchDir() {
+        String dir = prop.getProperty( "scratchDir", "" ).trim();
+        if ( dir.isEmpty() ) {
+            return new File( System.getProperty( "user.home" ), ".polypheny" + File.separator + "qtf-scratch" );
+        }
+        return new File( dir );
+    }
+
+
+    public static boolean isPrefetch() {
+        return Boolean.parseBoolean( prop.getProperty( "prefetch" ) );
+    }
+
+
+    public static int getPrefetchThreads() {
+        return Integer.parseInt( prop.getProperty( "prefetchThreads" ) );
+    }
+
+
+    public static int getPrefetchMB() {
+        return Integer.parseInt( prop.getProperty( "prefetchMB" ) );
+    }
+
+
+    public static int getPrefetchFileKB() {
+        return Integer.parseInt( prop.getProperty( "prefetchFileKB" ) );
+    }
+
+
+    public static int getCommitBatchRows() {
+        // a batch holds at least one row
+        return Math.max( 1, Integer.parseInt( prop.getProperty( "commitBatchRows" ) ) );
+    }
+
+
+    public static int getCommitBatchMB() {
+        return Integer.parseInt( prop.getProperty( "commitBatchMB" ) );
+    }
+
+
+    public static int getCommitThreads() {
+        // with no thread, nothing would be sent and the commit would still succeed
+        return Math.max( 1, Integer.parseInt( prop.getProperty( "commitThreads" ) ) );
+    }
+
+
+    public static boolean isCommitTransaction() {
+        return Boolean.parseBoolean( prop.getProperty( "commitTransaction" ) );
+    }
+
+
+    public static int getMountBudgetMB() {
+        return Integer.parseInt( prop.getProperty( "mountBudgetMB" ) );
+    }
+
+
+    public static int getResultCacheMB() {
+        return Integer.parseInt( prop.getProperty( "resultCacheMB" ) );
+    }
+
+
+    public static int getResultCacheSeconds() {
+        return Integer.parseInt( prop.getProperty( "resultCacheSeconds" ) );
+    }
+
+
+    public static boolean isExportFiles() {
+        return Boolean.parseBoolean( prop.getProperty( "exportFiles" ) );
+    }
+
+
+    public static int getArrowBatchRows() {
+        // a batch holds at least one row
+        return Math.max( 1, Integer.parseInt( prop.getProperty( "arrowBatchRows" ) ) );
+    }
+
+
+    public static int getViewTimeoutSeconds() {
+        return Integer.parseInt( prop.getProperty( "viewTimeoutSeconds" ) );
+    }
+
+
+    public static int getAttrTimeoutSeconds() {
+        return Integer.parseInt( prop.getProperty( "attrTimeoutSeconds" ) );
+    }
+
+
+    public static int getEntryTimeoutSeconds() {
+        return Integer.parseInt( prop.getProperty( "entryTimeoutSeconds" ) );
+    }
+
+
     public static int getReconnectionTimeout() {
         return Integer.parseInt( prop.getProperty( "reconnectionTimeout" ) );
     }
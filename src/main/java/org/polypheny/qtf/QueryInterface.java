@@ -21,17 +21,27 @@ import com.google.gson.Gson;
 import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import jnr.ffi.Platform;
-import jnr.ffi.Platform.OS;
-import kong.unirest.MultipartBody;
 import kong.unirest.Unirest;
+import jnr.ffi.Platform.OS;
 import lombok.extern.slf4j.Slf4j;
 import org.polypheny.qtf.fuse.ResultFS;
+import org.polypheny.qtf.fuse.ResultFS.Layout;
+import org.polypheny.qtf.fuse.ResultFS.Namespace;
 import org.polypheny.qtf.web.BatchUpdateRequest;
-import org.polypheny.qtf.web.BatchUpdateRequest.Update;
-import org.polypheny.qtf.web.BatchUpdateRequest.Value;
+import org.polypheny.qtf.web.CommitPipeline;
 import org.polypheny.qtf.web.Result;
+import org.polypheny.qtf.web.Result.DbColumn;
+import org.polypheny.qtf.web.ResultCache;
 import org.polypheny.qtf.web.SocketClient;
+import org.polypheny.qtf.web.UIRequest;
 import org.polypheny.qtf.web.UIRequest.QueryRequest;
 import org.polypheny.qtf.web.UIRequest.TableRequest;
 
@@ -42,7 +52,10 @@ public abstract class QueryInterface {
     final ResultFS myFuse = new ResultFS();
     SocketClient socketClient;
     final Gson gson = new Gson();
+    private final CommitPipeline commitPipeline = new CommitPipeline( this );
+    private final ResultCache resultCache = new ResultCache();
     private final File root;
+    private final AtomicInteger queries = new AtomicInteger();
 
     public QueryInterface() {
         root = QTFConfig.getMountPoint();
@@ -52,12 +65,13 @@ public abstract class QueryInterface {
 
         //unmount in case it is still mounted
         //myFuse.umount();
-        myFuse.mount( root.toPath(), false, false );
+        myFuse.mount( root.toPath(), false, false, getMountOptions() );
         try {
-            this.socketClient = new SocketClient( new URI( QTFConfig.getWebSocketUrl() ), myFuse, this );
+            this.socketClient = new SocketClient( new URI( QTFConfig.getWebSocketUrl() ), myFuse, this, resultCache );
             log.info( "Connecting to websocket..." );
             if ( socketClient.connectBlocking() ) {
                 log.info( "Established a connection with the websocket" );
+                myFuse.setViewHandler( this::submitView );
             } else {
                 log.error( "Could not connect to websocket." );
                 System.exit( 1 );
@@ -68,38 +82,240 @@ public abstract class QueryInterface {
         }
     }
 
-    void submitQueryRequest( String query ) {
-        myFuse.reset();
-        socketClient.send( gson.toJson( new QueryRequest( query ), QueryRequest.class ) );
-        //the socketClient handles the asynchronous response
+    /**
+     * The kernel caches attributes and lookups for the configured time and uses the inodes of the FS
+     */
+    private static String[] getMountOptions() {
+        if ( Platform.getNativePlatform().getOS() == OS.WINDOWS ) {
+            return new String[0];
+        }
+        return new String[]{ "-o", String.format( "attr_timeout=%d,entry_timeout=%d,use_ino",
+                QTFConfig.getAttrTimeoutSeconds(), QTFConfig.getEntryTimeoutSeconds() ) };
+    }
+
+    /**
+     * Submit a query, its result is mounted in a namespace named q1, q2, ...
+     *
+     * @return The name of the namespace
+     */
+    String submitQueryRequest( String query ) {
+        return submitQueryRequest( query, Layout.ROWS );
+    }
+
+    String submitQueryRequest( String query, Layout layout ) {
+        return submitQueryRequest( "q" + queries.incrementAndGet(), query, layout );
+    }
+
+    /**
+     * Submit a query, its result is mounted in the namespace with the given name, replacing a previous result
+     *
+     * @return The name of the namespace
+     */
+    String submitQueryRequest( String name, String query ) {
+        return submitQueryRequest( name, query, Layout.ROWS );
+    }
+
+    String submitQueryRequest( String name, String query, Layout layout ) {
+        return submit( name, new QueryRequest( query ).setLayout( layout ), ResultCache.queryKey( query ) );
+    }
+
+    /**
+     * Select all rows of a table, they are mounted in a namespace named after the table
+     *
+     * @return The name of the namespace
+     */
+    String submitTableRequest( String tableId ) {
+        return submitTableRequest( tableId, Layout.ROWS );
+    }
+
+    String submitTableRequest( String tableId, Layout layout ) {
+        return submitTableRequest( tableId.replace( '/', '_' ), tableId, layout );
+    }
+
+    String submitTableRequest( String name, String tableId ) {
+        return submitTableRequest( name, tableId, Layout.ROWS );
+    }
+
+    String submitTableRequest( String name, String tableId, Layout layout ) {
+        return submit( name, new TableRequest( tableId ).setLayout( layout ), ResultCache.tableKey( tableId ), TableRequest.qualify( tableId ) );
+    }
+
+    /**
+     * Mount a table without its rows, they are queried by the subfolders of its by and pk folders,
+     * e.g. /orders/by/status=open or /orders/pk/12345
+     *
+     * @return The name of the namespace
+     */
+    String browseTable( String tableId ) {
+        return browseTable( tableId.replace( '/', '_' ), tableId, Layout.ROWS );
+    }
+
+    String browseTable( String name, String tableId, Layout layout ) {
+        // only the header of the table is received, it does not mark the primary key that the rows in pk are queried by
+        String query = QueryRequest.select( tableId, new DbColumn[0], new String[0] ) + " LIMIT 0";
+        Namespace namespace = myFuse.addNamespace( name );
+        namespace.setTable( TableRequest.qualify( tableId ) );
+        namespace.setPrimaryKey( getPrimaryKey( tableId ) );
+        submit( namespace, new QueryRequest( query ).setLayout( layout ), ResultCache.queryKey( query ) );
+        return name;
+    }
+
+    /**
+     * Request the columns of a table from Polypheny-DB
+     *
+     * @return The names of the primary key columns of the table or null if its columns could not be requested
+     */
+    private String[] getPrimaryKey( String tableId ) {
+        Result columns;
+        try {
+            columns = Unirest.post( QTFConfig.getRestInterface( "getColumns" ) ).body( gson.toJson( new TableRequest( tableId ) ) ).asObject( Result.class ).getBody();
+        } catch ( RuntimeException e ) {
+            log.error( "Could not request the columns of " + tableId, e );
+            return null;
+        }
+        if ( columns == null || columns.header == null ) {
+            log.error( "Could not request the columns of " + tableId + (columns == null || columns.error == null ? "" : ": " + columns.error) );
+            return null;
+        }
+        List<String> primaryKey = new ArrayList<>();
+        for ( DbColumn column : columns.header ) {
+            if ( column.primary ) {
+                primaryKey.add( column.name );
+            }
+        }
+        return primaryKey.toArray( new String[0] );
+    }
+
+    /**
+     * Query the rows of a view that was resolved in the FS, see {@link ResultFS.ViewHandler}
+     */
+    private void submitView( Namespace view, String query ) {
+        submit( view, new QueryRequest( query ).setLayout( view.getLayout() ), ResultCache.queryKey( query ) );
+    }
+
+    private String submit( String name, UIRequest request, String cacheKey ) {
+        return submit( name, request, cacheKey, null );
     }
 
-    void submitTableRequest( String tableId ) {
-        myFuse.reset();
-        socketClient.send( gson.toJson( new TableRequest( tableId ), TableRequest.class ) );
+    /**
+     * @param table The table the rows of the result are selected from, if it is known
+     */
+    private String submit( String name, UIRequest request, String cacheKey, String table ) {
+        Namespace namespace = myFuse.addNamespace( name );
+        namespace.setTable( table );
+        submit( namespace, request, cacheKey );
+        return name;
+    }
+
+    /**
+     * Mount the result of a request in a namespace, from the result cache if it is cached
+     */
+    private void submit( Namespace namespace, UIRequest request, String cacheKey ) {
+        namespace.setRequest( gson.toJson( request, request.getClass() ) );
+        namespace.setCacheKey( cacheKey );
+        namespace.setLayout( request.layout );
+        if ( !mountCached( namespace ) ) {
+            socketClient.submit( namespace );
+            //the socketClient handles the asynchronous response
+        }
+    }
+
+    /**
+     * Run the request of a namespace again and apply the inserted, deleted and changed rows of its result
+     * to the namespace, see {@link ResultFS#refresh}
+     *
+     * @return false if no such namespace is mounted
+     */
+    boolean refresh( String name ) {
+        Namespace namespace = myFuse.getNamespace( name );
+        if ( namespace == null || namespace.getRequest() == null ) {
+            return false;
+        }
+        socketClient.refresh( namespace );
+        return true;
+    }
+
+    /**
+     * Mount the result of a request from the result cache, if it is cached
+     *
+     * @return false if the result needs to be fetched
+     */
+    private boolean mountCached( Namespace namespace ) {
+        Result cached = resultCache.get( namespace.getCacheKey() );
+        if ( cached == null ) {
+            return false;
+        }
+        myFuse.mountResult( namespace, cached );
+        onResultUpdate( cached );
+        return true;
+    }
+
+    /**
+     * Unmount a namespace and release its result
+     *
+     * @return false if no such namespace is mounted
+     */
+    boolean unmount( String name ) {
+        return myFuse.unmount( name );
     }
 
     public abstract void onResultUpdate( Result result );
 
-    Result commit() {
-        if ( myFuse.getResult() == null || myFuse.getResult().table == null ) {
-            return new Result( "Cannot commit because of missing table name." );
+    /**
+     * Commit the changes of all namespaces in the background, each namespace is committed on its own
+     */
+    CompletableFuture<Result> commit() {
+        Map<String, CompletableFuture<Result>> commits = new LinkedHashMap<>();
+        for ( Namespace namespace : myFuse.getNamespaces() ) {
+            if ( namespace.getPendingChanges() > 0 ) {
+                commits.put( namespace.getName(), commit( namespace ) );
+            }
         }
-        BatchUpdateRequest request = myFuse.getBatchUpdateRequest();
-        //multiPartContent: see https://github.com/Kong/unirest-java/issues/165
-        MultipartBody body = Unirest.post( QTFConfig.getRestInterface( "batchUpdate" ) ).multiPartContent();
-        int counter = 0;
-        for ( Update update : request.getUpdates() ) {
-            for ( Value value : update.getNewValues().values() ) {
-                if ( value.getFile() != null ) {
-                    value.setFileName( "file" + ++counter );
-                    File f = new File( root, value.getFile().getPath() );
-                    body.field( "file" + counter, f );
+        return CompletableFuture.allOf( commits.values().toArray( new CompletableFuture[0] ) ).thenApply( v -> {
+            Result merged = new Result();
+            merged.affectedRows = 0;
+            List<String> errors = new ArrayList<>();
+            for ( Entry<String, CompletableFuture<Result>> commit : commits.entrySet() ) {
+                Result result = commit.getValue().join();
+                if ( result.affectedRows != null ) {
+                    merged.affectedRows += result.affectedRows;
+                }
+                if ( result.error != null ) {
+                    errors.add( "/" + commit.getKey() + ": " + result.error );
                 }
             }
+            if ( !errors.isEmpty() ) {
+                merged.error = String.join( "\n", errors );
+            }
+            return merged;
+        } );
+    }
+
+    /**
+     * Commit the changes of one namespace in the background
+     */
+    CompletableFuture<Result> commit( String name ) {
+        Namespace namespace = myFuse.getNamespace( name );
+        if ( namespace == null ) {
+            return CompletableFuture.completedFuture( new Result( "There is no result mounted in /" + name + "." ) );
+        }
+        return commit( namespace );
+    }
+
+    private CompletableFuture<Result> commit( Namespace namespace ) {
+        Result result = namespace.getResult();
+        if ( result == null || result.table == null ) {
+            return CompletableFuture.completedFuture( new Result( "Cannot commit because of missing table name." ) );
+        }
+        // the updates identify the rows they change by their primary key
+        if ( result.getPrimaryKeys().length == 0 ) {
+            return CompletableFuture.completedFuture( new Result( "Cannot commit because the primary key of " + result.table + " is not known." ) );
         }
-        body.field( "request", gson.toJson( request, BatchUpdateRequest.class ) );
-        return body.asObject( Result.class ).getBody();
+        BatchUpdateRequest request = namespace.getBatchUpdateRequest();
+        return commitPipeline.commit( request, namespace::committed ).whenComplete( ( r, e ) -> {
+            // cached results of the table are outdated once the commit changed it, even if it failed partway
+            resultCache.invalidate( result.table );
+        } );
     }
 
 }
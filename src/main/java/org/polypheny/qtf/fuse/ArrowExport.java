@@ -0,0 +1,614 @@
+/*
+ * Copyright 2019-2021 The Polypheny Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.polypheny.qtf.fuse;
+
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import org.polypheny.qtf.web.Result;
+import org.polypheny.qtf.web.Result.DbColumn;
+
+
+/**
+ * A result in the Arrow IPC file format, e.g. to memory-map it with pyarrow.
+ * The rows are split into record batches of a fixed number of rows, each batch is a chunk of the file that is only
+ * rendered when it is read. Batches of long strings hold fewer rows, so their body fits into an array. The schema is derived from the data types of the columns: integers, floating point numbers
+ * and booleans are stored as such, all other columns as UTF-8 strings. Values that cannot be parsed are null.
+ * See https://arrow.apache.org/docs/format/Columnar.html#ipc-file-format
+ */
+class ArrowExport extends ResultExport {
+
+    private static final byte[] MAGIC = "ARROW1".getBytes( StandardCharsets.US_ASCII );
+    private static final int CONTINUATION = 0xFFFFFFFF;
+    private static final short METADATA_V5 = 4;
+    // union types of Message.header
+    private static final byte SCHEMA = 1;
+    private static final byte RECORD_BATCH = 3;
+    // union types of Field.type
+    private static final byte INT = 2;
+    private static final byte FLOATING_POINT = 3;
+    private static final byte UTF8 = 5;
+    private static final byte BOOL = 6;
+    private static final short DOUBLE = 2;
+    /**
+     * Maximum length of the body of a batch, unless a single row is longer. A body is rendered into one array.
+     */
+    private static final long MAX_BODY_BYTES = 1L << 30;
+
+    private final int batchRows;
+    private final long maxBodyBytes;
+    private final Type[] types;
+    /**
+     * The first row of each batch, followed by the number of rows
+     */
+    private int[] firstRows;
+    /**
+     * Length of the metadata and of the body of each batch, for the footer of the file
+     */
+    private int[] metadataLengths;
+    private long[] bodyLengths;
+
+
+    private enum Type {
+        INT32, INT64, FLOAT64, BOOL, UTF8;
+
+        static Type of( DbColumn column ) {
+            if ( column.isBoolean() ) {
+                return BOOL;
+            }
+            if ( !column.isNumeric() ) {
+                return UTF8;
+            }
+            switch ( column.getBaseType() ) {
+                case "TINYINT":
+                case "SMALLINT":
+                case "INTEGER":
+                    return INT32;
+                case "BIGINT":
+                    return INT64;
+                case "REAL":
+                case "FLOAT":
+                case "DOUBLE":
+                    return FLOAT64;
+                default:
+                    // e.g. decimals, which would lose their precision as floating point numbers, dates and urls of files
+                    return UTF8;
+            }
+        }
+    }
+
+
+    ArrowExport( Result result, int batchRows ) {
+        this( result, batchRows, MAX_BODY_BYTES );
+    }
+
+    ArrowExport( Result result, int batchRows, long maxBodyBytes ) {
+        super( result );
+        if ( batchRows < 1 ) {
+            throw new IllegalArgumentException( "A record batch needs to hold at least one row, not " + batchRows + "." );
+        }
+        this.batchRows = batchRows;
+        this.maxBodyBytes = maxBodyBytes;
+        this.types = new Type[result.header.length];
+        for ( int h = 0; h < types.length; h++ ) {
+            types[h] = Type.of( result.header[h] );
+        }
+    }
+
+    @Override
+    protected byte[] renderHeader() {
+        byte[] schema = message( SCHEMA, schema(), 0 );
+        ByteBuffer header = ByteBuffer.allocate( 8 + schema.length );
+        header.put( MAGIC ).put( new byte[2] ).put( schema );
+        return header.array();
+    }
+
+    /**
+     * A batch ends after batchRows rows or before the row that would make its body longer than maxBodyBytes.
+     * The length of a row is estimated from above: a byte of validity bits per cell, its value or offset
+     * and its string, plus the padding of each buffer and the last offset of each string column per batch.
+     */
+    @Override
+    protected int getChunkCount() {
+        int rowCount = result.getRowCount();
+        long rowBytes = 0;
+        long batchBytes = 0;
+        for ( Type type : types ) {
+            rowBytes += 1 + (type == Type.INT64 || type == Type.FLOAT64 ? 8 : type == Type.BOOL ? 1 : 4);
+            batchBytes += type == Type.UTF8 ? 3 * 7 + 4 : 2 * 7;
+        }
+        List<Integer> firsts = new ArrayList<>();
+        int rows = 0;
+        long body = 0;
+        for ( int i = 0; i < rowCount; i++ ) {
+            long bytes = rowBytes;
+            for ( int h = 0; h < types.length; h++ ) {
+                if ( types[h] == Type.UTF8 ) {
+                    ByteBuffer cell = result.getBytes( i, h );
+                    bytes += cell == null ? 0 : cell.remaining();
+                }
+            }
+            if ( firsts.isEmpty() || rows == batchRows || body + bytes > maxBodyBytes ) {
+                firsts.add( i );
+                rows = 0;
+                body = batchBytes;
+            }
+            rows++;
+            body += bytes;
+        }
+        int batches = firsts.size();
+        firstRows = new int[batches + 1];
+        for ( int b = 0; b < batches; b++ ) {
+            firstRows[b] = firsts.get( b );
+        }
+        firstRows[batches] = rowCount;
+        metadataLengths = new int[batches];
+        bodyLengths = new long[batches];
+        return batches;
+    }
+
+    /**
+     * The length of a batch is determined from the lengths of its cells, without rendering it
+     */
+    @Override
+    protected long getLength( int chunk ) {
+        int first = firstRows[chunk];
+        int rows = firstRows[chunk + 1] - first;
+        long body = 0;
+        int buffers = 2 * types.length;
+        for ( int h = 0; h < types.length; h++ ) {
+            body += pad( (rows + 7) / 8 );
+            switch ( types[h] ) {
+                case INT32:
+                    body += pad( 4L * rows );
+                    break;
+                case INT64:
+                case FLOAT64:
+                    body += pad( 8L * rows );
+                    break;
+                case BOOL:
+                    body += pad( (rows + 7) / 8 );
+                    break;
+                default:
+                    long data = 0;
+                    for ( int i = first; i < first + rows; i++ ) {
+                        ByteBuffer cell = result.getBytes( i, h );
+                        data += cell == null ? 0 : cell.remaining();
+                    }
+                    body += pad( 4L * (rows + 1) ) + pad( data );
+                    buffers++;
+            }
+        }
+        // the metadata does not depend on the values, only on the number of columns
+        int metadata = message( RECORD_BATCH, recordBatch( rows, new long[types.length], new long[buffers][] ), body ).length;
+        metadataLengths[chunk] = metadata;
+        bodyLengths[chunk] = body;
+        return metadata + body;
+    }
+
+    @Override
+    protected byte[] render( int chunk ) {
+        int first = firstRows[chunk];
+        int rows = firstRows[chunk + 1] - first;
+        ByteBuffer body = ByteBuffer.allocate( (int) bodyLengths[chunk] ).order( ByteOrder.LITTLE_ENDIAN );
+        long[] nullCounts = new long[types.length];
+        List<long[]> buffers = new ArrayList<>();
+        int bitmap = (rows + 7) / 8;
+        for ( int h = 0; h < types.length; h++ ) {
+            // each buffer starts at a multiple of 8 bytes
+            int validity = body.position();
+            int values = validity + pad( bitmap );
+            int data = values + (int) pad( 4L * (rows + 1) );
+            if ( types[h] == Type.UTF8 ) {
+                body.position( data );
+            }
+            int length = 0;
+            for ( int i = 0; i < rows; i++ ) {
+                String value = result.getValue( first + i, h );
+                boolean valid = value != null;
+                try {
+                    switch ( types[h] ) {
+                        case INT32:
+                            body.putInt( values + 4 * i, valid ? Integer.parseInt( value.trim() ) : 0 );
+                            break;
+                        case INT64:
+                            body.putLong( values + 8 * i, valid ? Long.parseLong( value.trim() ) : 0 );
+                            break;
+                        case FLOAT64:
+                            body.putDouble( values + 8 * i, valid ? Double.parseDouble( value.trim() ) : 0 );
+                            break;
+                        case BOOL:
+                            valid = valid && result.header[h].isValid( value );
+                            if ( valid && value.equalsIgnoreCase( "true" ) ) {
+                                setBit( body, values, i );
+                            }
+                            break;
+                        default:
+                            // the values are the offsets of the strings in the data buffer
+                            ByteBuffer cell = result.getBytes( first + i, h );
+                            if ( cell != null ) {
+                                body.put( cell.duplicate() );
+                                length += cell.remaining();
+                            }
+                            body.putInt( values + 4 * (i + 1), length );
+                    }
+                } catch ( NumberFormatException e ) {
+                    valid = false;
+                }
+                if ( valid ) {
+                    setBit( body, validity, i );
+                } else {
+                    nullCounts[h]++;
+                }
+            }
+            buffers.add( new long[]{ validity, bitmap } );
+            long size;
+            switch ( types[h] ) {
+                case INT32:
+                    size = 4L * rows;
+                    break;
+                case INT64:
+                case FLOAT64:
+                    size = 8L * rows;
+                    break;
+                case BOOL:
+                    size = bitmap;
+                    break;
+                default:
+                    buffers.add( new long[]{ values, 4L * (rows + 1) } );
+                    values = data;
+                    size = length;
+            }
+            buffers.add( new long[]{ values, size } );
+            body.position( values + (int) pad( size ) );
+        }
+        byte[] metadata = message( RECORD_BATCH, recordBatch( rows, nullCounts, buffers.toArray( new long[0][] ) ), bodyLengths[chunk] );
+        byte[] batch = new byte[metadata.length + body.capacity()];
+        System.arraycopy( metadata, 0, batch, 0, metadata.length );
+        System.arraycopy( body.array(), 0, batch, metadata.length, body.capacity() );
+        return batch;
+    }
+
+    @Override
+    protected byte[] renderTrailer( long[] offsets ) {
+        byte[] blocks = new byte[24 * offsets.length];
+        ByteBuffer b = ByteBuffer.wrap( blocks ).order( ByteOrder.LITTLE_ENDIAN );
+        for ( int i = 0; i < offsets.length; i++ ) {
+            b.putLong( offsets[i] ).putInt( metadataLengths[i] ).putInt( 0 ).putLong( bodyLengths[i] );
+        }
+        Table footer = new Table()
+                .add( 0, METADATA_V5 )
+                .add( 1, schema() )
+                .add( 2, new Structs( new byte[0], 0 ) )
+                .add( 3, new Structs( blocks, offsets.length ) );
+        byte[] fb = FlatBuffer.serialize( footer );
+        ByteBuffer trailer = ByteBuffer.allocate( 8 + fb.length + 4 + MAGIC.length ).order( ByteOrder.LITTLE_ENDIAN );
+        // end-of-stream marker
+        trailer.putInt( CONTINUATION ).putInt( 0 );
+        trailer.put( fb ).putInt( fb.length ).put( MAGIC );
+        return trailer.array();
+    }
+
+    private Table schema() {
+        List<Node> fields = new ArrayList<>();
+        for ( int h = 0; h < types.length; h++ ) {
+            Table type;
+            byte typeType;
+            switch ( types[h] ) {
+                case INT32:
+                case INT64:
+                    typeType = INT;
+                    type = new Table().add( 0, types[h] == Type.INT32 ? 32 : 64 ).add( 1, true );
+                    break;
+                case FLOAT64:
+                    typeType = FLOATING_POINT;
+                    type = new Table().add( 0, DOUBLE );
+                    break;
+                case BOOL:
+                    typeType = BOOL;
+                    type = new Table();
+                    break;
+                default:
+                    typeType = UTF8;
+                    type = new Table();
+            }
+            fields.add( new Table()
+                    .add( 0, new Str( result.header[h].name ) )
+                    .add( 1, true )
+                    .add( 2, typeType )
+                    .add( 3, type )
+                    .add( 5, new Offsets( new ArrayList<>() ) ) );
+        }
+        return new Table().add( 1, new Offsets( fields ) );
+    }
+
+    /**
+     * @param buffers Offset and length of each buffer in the body
+     */
+    private Table recordBatch( int rows, long[] nullCounts, long[][] buffers ) {
+        byte[] nodes = new byte[16 * nullCounts.length];
+        ByteBuffer n = ByteBuffer.wrap( nodes ).order( ByteOrder.LITTLE_ENDIAN );
+        for ( long nullCount : nullCounts ) {
+            n.putLong( rows ).putLong( nullCount );
+        }
+        byte[] bufs = new byte[16 * buffers.length];
+        ByteBuffer b = ByteBuffer.wrap( bufs ).order( ByteOrder.LITTLE_ENDIAN );
+        for ( long[] buffer : buffers ) {
+            b.putLong( buffer == null ? 0 : buffer[0] ).putLong( buffer == null ? 0 : buffer[1] );
+        }
+        return new Table()
+                .add( 0, (long) rows )
+                .add( 1, new Structs( nodes, nullCounts.length ) )
+                .add( 2, new Structs( bufs, buffers.length ) );
+    }
+
+    /**
+     * @return An encapsulated message without its body: a continuation marker, the length of the metadata and the
+     * metadata, padded to a multiple of 8 bytes
+     */
+    private static byte[] message( byte headerType, Table header, long bodyLength ) {
+        Table message = new Table()
+                .add( 0, METADATA_V5 )
+                .add( 1, headerType )
+                .add( 2, header )
+                .add( 3, bodyLength );
+        byte[] fb = FlatBuffer.serialize( message );
+        int length = (int) pad( fb.length );
+        ByteBuffer encapsulated = ByteBuffer.allocate( 8 + length ).order( ByteOrder.LITTLE_ENDIAN );
+        encapsulated.putInt( CONTINUATION ).putInt( length ).put( fb );
+        return encapsulated.array();
+    }
+
+    private static long pad( long length ) {
+        return (length + 7) & ~7L;
+    }
+
+    private static int pad( int length ) {
+        return (length + 7) & ~7;
+    }
+
+    private static void setBit( ByteBuffer buffer, int offset, int i ) {
+        int index = offset + i / 8;
+        buffer.put( index, (byte) (buffer.get( index ) | (1 << (i % 8))) );
+    }
+
+
+    /**
+     * An object of a flatbuffer that is referred to by an offset
+     */
+    private interface Node {
+
+    }
+
+
+    /**
+     * A table of a flatbuffer, its fields are identified by their index in the schema.
+     * Fields are either scalars or offsets to other objects.
+     */
+    private static class Table implements Node {
+
+        final List<Integer> slots = new ArrayList<>();
+        final List<Object> values = new ArrayList<>();
+
+        Table add( int slot, Object value ) {
+            slots.add( slot );
+            values.add( value );
+            return this;
+        }
+
+    }
+
+
+    /**
+     * A vector of offsets to tables or strings
+     */
+    private static class Offsets implements Node {
+
+        final List<Node> elements;
+
+        Offsets( List<Node> elements ) {
+            this.elements = elements;
+        }
+
+    }
+
+
+    /**
+     * A vector of structs whose fields are 8 byte aligned, e.g. Block or Buffer
+     */
+    private static class Structs implements Node {
+
+        final byte[] bytes;
+        final int count;
+
+        Structs( byte[] bytes, int count ) {
+            this.bytes = bytes;
+            this.count = count;
+        }
+
+    }
+
+
+    private static class Str implements Node {
+
+        final byte[] bytes;
+
+        Str( String value ) {
+            this.bytes = value.getBytes( StandardCharsets.UTF_8 );
+        }
+
+    }
+
+
+    /**
+     * Writes flatbuffers front to back: every object is written after the object that refers to it,
+     * so all offsets point forward, and each vtable directly precedes its table.
+     */
+    private static class FlatBuffer {
+
+        private ByteBuffer buffer = ByteBuffer.allocate( 256 ).order( ByteOrder.LITTLE_ENDIAN );
+        /**
+         * Objects that are not written yet and the positions of the offsets that refer to them
+         */
+        private final ArrayDeque<Object[]> pending = new ArrayDeque<>();
+
+        static byte[] serialize( Table root ) {
+            FlatBuffer fb = new FlatBuffer();
+            fb.refer( root );
+            while ( !fb.pending.isEmpty() ) {
+                Object[] next = fb.pending.poll();
+                int position = fb.write( (Node) next[1] );
+                fb.buffer.putInt( (int) next[0], position - (int) next[0] );
+            }
+            byte[] bytes = new byte[fb.buffer.position()];
+            System.arraycopy( fb.buffer.array(), 0, bytes, 0, bytes.length );
+            return bytes;
+        }
+
+        /**
+         * Reserve an offset to an object that is written later
+         */
+        private void refer( Node node ) {
+            align( 4 );
+            pending.add( new Object[]{ buffer.position(), node } );
+            ensure( 4 );
+            buffer.putInt( 0 );
+        }
+
+        private int write( Node node ) {
+            if ( node instanceof Table ) {
+                return writeTable( (Table) node );
+            } else if ( node instanceof Offsets ) {
+                List<Node> elements = ((Offsets) node).elements;
+                align( 4 );
+                int position = buffer.position();
+                ensure( 4 );
+                buffer.putInt( elements.size() );
+                for ( Node element : elements ) {
+                    refer( element );
+                }
+                return position;
+            } else if ( node instanceof Structs ) {
+                Structs structs = (Structs) node;
+                // the elements follow the length and are 8 byte aligned
+                while ( (buffer.position() + 4) % 8 != 0 ) {
+                    ensure( 1 );
+                    buffer.put( (byte) 0 );
+                }
+                int position = buffer.position();
+                ensure( 4 + structs.bytes.length );
+                buffer.putInt( structs.count ).put( structs.bytes );
+                return position;
+            } else {
+                byte[] bytes = ((Str) node).bytes;
+                align( 4 );
+                int position = buffer.position();
+                ensure( 4 + bytes.length + 1 );
+                buffer.putInt( bytes.length ).put( bytes ).put( (byte) 0 );
+                return position;
+            }
+        }
+
+        private int writeTable( Table table ) {
+            int slots = 0;
+            for ( int slot : table.slots ) {
+                slots = Math.max( slots, slot + 1 );
+            }
+            int vtableSize = 4 + 2 * slots;
+            align( 2 );
+            int vtable = buffer.position();
+            int start = vtable + vtableSize;
+            start += (4 - start % 4) % 4;
+            // lay out the fields, the largest first, each aligned to its size
+            int[] fieldOffsets = new int[slots];
+            int position = start + 4;
+            for ( int size : new int[]{ 8, 4, 2, 1 } ) {
+                for ( int i = 0; i < table.values.size(); i++ ) {
+                    if ( sizeOf( table.values.get( i ) ) == size ) {
+                        position += (size - position % size) % size;
+                        fieldOffsets[table.slots.get( i )] = position - start;
+                        position += size;
+                    }
+                }
+            }
+            int end = position;
+            ensure( end - vtable );
+            buffer.putShort( (short) vtableSize ).putShort( (short) (end - start) );
+            for ( int offset : fieldOffsets ) {
+                buffer.putShort( (short) offset );
+            }
+            while ( buffer.position() < start ) {
+                buffer.put( (byte) 0 );
+            }
+            buffer.putInt( start - vtable );
+            while ( buffer.position() < end ) {
+                buffer.put( (byte) 0 );
+            }
+            for ( int i = 0; i < table.values.size(); i++ ) {
+                int at = start + fieldOffsets[table.slots.get( i )];
+                Object value = table.values.get( i );
+                if ( value instanceof Node ) {
+                    pending.add( new Object[]{ at, value } );
+                } else if ( value instanceof Long ) {
+                    buffer.putLong( at, (Long) value );
+                } else if ( value instanceof Integer ) {
+                    buffer.putInt( at, (Integer) value );
+                } else if ( value instanceof Short ) {
+                    buffer.putShort( at, (Short) value );
+                } else if ( value instanceof Byte ) {
+                    buffer.put( at, (Byte) value );
+                } else {
+                    buffer.put( at, (byte) ((Boolean) value ? 1 : 0) );
+                }
+            }
+            return start;
+        }
+
+        private static int sizeOf( Object value ) {
+            if ( value instanceof Long ) {
+                return 8;
+            } else if ( value instanceof Integer || value instanceof Node ) {
+                return 4;
+            } else if ( value instanceof Short ) {
+                return 2;
+            }
+            return 1;
+        }
+
+        private void align( int alignment ) {
+            while ( buffer.position() % alignment != 0 ) {
+                ensure( 1 );
+                buffer.put( (byte) 0 );
+            }
+        }
+
+        private void ensure( int bytes ) {
+            if ( buffer.remaining() < bytes ) {
+                ByteBuffer larger = ByteBuffer.allocate( Math.max( 2 * buffer.capacity(), buffer.position() + bytes ) ).order( ByteOrder.LITTLE_ENDIAN );
+                buffer.flip();
+                larger.put( buffer );
+                buffer = larger;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,658 @@
+/*
+ * Copyright 2019-2021 The Polypheny Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.polypheny.qtf.fuse;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import jnr.ffi.Pointer;
+import kong.unirest.Empty;
+import kong.unirest.HttpResponse;
+import kong.unirest.Unirest;
+import lombok.extern.slf4j.Slf4j;
+import org.polypheny.qtf.QTFConfig;
+import ru.serce.jnrfuse.ErrorCodes;
+
+
+/**
+ * Cache for the contents of multimedia files that are fetched from Polypheny-DB.
+ * Blobs are cached in blocks. The blocks are kept in memory up to a budget and blocks that were not used recently
+ * are moved to a local directory when the budget is exceeded. The directory has a budget as well, if it is exceeded,
+ * the least recently used blobs are removed from it and need to be fetched again.
+ * Missing blocks are fetched with range requests. As long as a blob is read sequentially, the number of blocks that
+ * are fetched ahead is doubled with every request, up to a configured maximum.
+ * The size of a blob is requested with a HEAD request, so it can be reported without fetching the blob.
+ * Sizes can also be requested in the background, so the sizes of several files are requested in parallel.
+ */
+@Slf4j
+public class BlobCache {
+
+    private static final String SUFFIX = ".blob";
+
+    private final int blockSize;
+    private final int maxReadAhead;
+    private final long memoryBudget;
+    private final long diskBudget;
+    private final File directory;
+    private final ExecutorService stats;
+
+    private final ConcurrentHashMap<String, Blob> blobs = new ConcurrentHashMap<>();
+    /**
+     * Blocks in memory. A hit does not lock, it only marks the block as referenced.
+     * The blocks are evicted in the order they were added, referenced blocks get a second chance (clock policy).
+     */
+    private final ConcurrentHashMap<Block, CachedBlock> memory = new ConcurrentHashMap<>();
+    // guarded by clock
+    private final ArrayDeque<Block> clock = new ArrayDeque<>();
+    private long memoryUsed = 0;
+    /**
+     * Blobs with blocks on disk, the least recently used first
+     */
+    private final LinkedHashMap<Blob, Boolean> spilled = new LinkedHashMap<>( 16, 0.75f, true );
+    private long diskUsed = 0;
+
+
+    private static class Blob {
+
+        final String url;
+        /**
+         * Size in bytes, -1 as long as it is not known
+         */
+        volatile long size = -1;
+        /**
+         * Whether the size is being requested in the background
+         */
+        final AtomicBoolean statting = new AtomicBoolean();
+        File file;
+        final BitSet onDisk = new BitSet();
+        long diskBytes = 0;
+        /**
+         * Last block that was read and the number of blocks to fetch with the next request
+         */
+        volatile int lastBlock = -2;
+        volatile int readAhead = 1;
+        /**
+         * Bytes that were fetched from the server, guarded by the blob
+         */
+        long fetched = 0;
+
+        Blob( String url ) {
+            this.url = url;
+        }
+
+    }
+
+
+    private static class CachedBlock {
+
+        final byte[] data;
+        volatile boolean referenced;
+
+        CachedBlock( byte[] data ) {
+            this.data = data;
+        }
+
+    }
+
+
+    private static class Block {
+
+        final Blob blob;
+        final int index;
+
+        Block( Blob blob, int index ) {
+            this.blob = blob;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if ( !(o instanceof Block) ) {
+                return false;
+            }
+            Block other = (Block) o;
+            return blob == other.blob && index == other.index;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash( System.identityHashCode( blob ), index );
+        }
+
+    }
+
+
+    public BlobCache() {
+        this.blockSize = QTFConfig.getBlobBlockKB() * 1024;
+        this.maxReadAhead = Math.max( 1, QTFConfig.getBlobReadAheadKB() / QTFConfig.getBlobBlockKB() );
+        this.memoryBudget = QTFConfig.getBlobCacheMB() * 1024L * 1024L;
+        this.diskBudget = QTFConfig.getBlobCacheDiskMB() * 1024L * 1024L;
+        this.directory = QTFConfig.getBlobCacheDir();
+        AtomicInteger counter = new AtomicInteger();
+        this.stats = Executors.newFixedThreadPool( QTFConfig.getPrefetchThreads(), r -> {
+            Thread t = new Thread( r, "stat-" + counter.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        } );
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            log.error( "Could not create the cache directory " + directory );
+        }
+        // remove blobs of an earlier session
+        File[] leftovers = directory.listFiles( ( dir, name ) -> name.endsWith( SUFFIX ) );
+        if ( leftovers != null ) {
+            for ( File f : leftovers ) {
+                if ( !f.delete() ) {
+                    log.debug( "Could not delete " + f );
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a range of a blob into a buffer. The blob is fetched if it is not cached.
+     *
+     * @return The number of bytes that were read or a negative error code
+     */
+    public int read( String url, Pointer buffer, long size, long offset ) {
+        Blob blob = blobs.computeIfAbsent( url, Blob::new );
+        int first = (int) (offset / blockSize);
+        if ( first == blob.lastBlock || first == blob.lastBlock + 1 ) {
+            blob.readAhead = Math.min( blob.readAhead * 2, maxReadAhead );
+        } else {
+            blob.readAhead = 1;
+        }
+        int total = 0;
+        while ( total < size ) {
+            long position = offset + total;
+            if ( blob.size >= 0 && position >= blob.size ) {
+                break;
+            }
+            int index = (int) (position / blockSize);
+            blob.lastBlock = index;
+            byte[] block = getBlock( blob, index, blob.readAhead );
+            if ( block == null ) {
+                if ( blob.size >= 0 && position >= blob.size ) {
+                    break;
+                }
+                return total > 0 ? total : -ErrorCodes.EIO();
+            }
+            int inBlock = (int) (position - (long) index * blockSize);
+            if ( inBlock >= block.length ) {
+                break;
+            }
+            int n = (int) Math.min( block.length - inBlock, size - total );
+            buffer.put( total, block, inBlock, n );
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Copy a whole blob to a buffer, e.g. before it is modified
+     *
+     * @return false if the blob could not be fetched or does not fit into the buffer
+     */
+    boolean load( String url, FileBuffer target ) throws IOException {
+        Blob blob = blobs.computeIfAbsent( url, Blob::new );
+        if ( stat( url ) < 0 ) {
+            return false;
+        }
+        long remaining = blob.size;
+        for ( int index = 0; remaining > 0; index++ ) {
+            byte[] block = getBlock( blob, index, Integer.MAX_VALUE );
+            if ( block == null ) {
+                return false;
+            }
+            int n = (int) Math.min( block.length, remaining );
+            if ( !target.append( ByteBuffer.wrap( block, 0, n ) ) ) {
+                return false;
+            }
+            remaining -= n;
+        }
+        return true;
+    }
+
+    /**
+     * @return A stream over a blob, the blocks are fetched as they are read
+     */
+    InputStream newInputStream( String url ) {
+        Blob blob = blobs.computeIfAbsent( url, Blob::new );
+        return new BlockInputStream() {
+            int index = 0;
+
+            @Override
+            protected ByteBuffer nextBlock() throws IOException {
+                if ( blob.size >= 0 && (long) index * blockSize >= blob.size ) {
+                    return null;
+                }
+                byte[] block = getBlock( blob, index, maxReadAhead );
+                if ( block == null ) {
+                    if ( blob.size >= 0 && (long) index * blockSize >= blob.size ) {
+                        return null;
+                    }
+                    throw new IOException( "Could not fetch " + url );
+                }
+                index++;
+                return ByteBuffer.wrap( block );
+            }
+        };
+    }
+
+    /**
+     * Fetch the beginning of a blob in the background, so it can be read without waiting for the server
+     *
+     * @param maxBytes Number of bytes at the beginning of the blob to fetch
+     * @return The number of bytes that were fetched from the server
+     */
+    public long prefetch( String url, long maxBytes ) {
+        Blob blob = blobs.computeIfAbsent( url, Blob::new );
+        long before;
+        synchronized ( blob ) {
+            before = blob.fetched;
+        }
+        int blocks = (int) Math.min( (maxBytes + blockSize - 1) / blockSize, Integer.MAX_VALUE );
+        for ( int index = 0; index < blocks; index++ ) {
+            if ( blob.size >= 0 && (long) index * blockSize >= blob.size ) {
+                break;
+            }
+            if ( getBlock( blob, index, Math.min( blocks - index, maxReadAhead ) ) == null ) {
+                break;
+            }
+        }
+        synchronized ( blob ) {
+            return blob.fetched - before;
+        }
+    }
+
+    /**
+     * Determine the size of a blob. If it is not known yet, it is requested from the server.
+     * If it is being requested in the background, the request is awaited rather than sent again.
+     *
+     * @return The size of the blob or -1 if it could not be determined
+     */
+    public long stat( String url ) {
+        Blob blob = blobs.computeIfAbsent( url, Blob::new );
+        if ( blob.size >= 0 ) {
+            return blob.size;
+        }
+        synchronized ( blob ) {
+            if ( blob.size < 0 ) {
+                blob.size = head( blob );
+            }
+        }
+        if ( blob.size < 0 ) {
+            // the server does not report the size, it is known once the first block was fetched
+            getBlock( blob, 0, 1 );
+        }
+        return blob.size;
+    }
+
+    /**
+     * Determine the size of a blob without waiting for the server. If it is not known yet, it is requested in the background.
+     *
+     * @return The size of the blob or -1 if it is not known yet
+     */
+    public long statAsync( String url ) {
+        Blob blob = blobs.computeIfAbsent( url, Blob::new );
+        if ( blob.size < 0 && blob.statting.compareAndSet( false, true ) ) {
+            stats.submit( () -> {
+                try {
+                    stat( url );
+                } finally {
+                    blob.statting.set( false );
+                }
+            } );
+        }
+        return blob.size;
+    }
+
+    /**
+     * @return The size of a blob or -1 if it is not known yet, without requesting it
+     */
+    public long getKnownSize( String url ) {
+        Blob blob = blobs.get( url );
+        return blob == null ? -1 : blob.size;
+    }
+
+    /**
+     * Remove blobs from the cache, including their blocks in memory and on disk, e.g. because their results were unmounted
+     */
+    public void remove( Collection<String> urls ) {
+        Set<Blob> removed = new HashSet<>();
+        for ( String url : urls ) {
+            Blob blob = blobs.remove( url );
+            if ( blob != null ) {
+                removed.add( blob );
+            }
+        }
+        if ( removed.isEmpty() ) {
+            return;
+        }
+        synchronized ( clock ) {
+            Iterator<Block> it = clock.iterator();
+            while ( it.hasNext() ) {
+                Block key = it.next();
+                if ( removed.contains( key.blob ) ) {
+                    it.remove();
+                    memoryUsed -= memory.remove( key ).data.length;
+                }
+            }
+        }
+        synchronized ( spilled ) {
+            for ( Blob blob : removed ) {
+                if ( spilled.remove( blob ) != null ) {
+                    diskUsed -= blob.diskBytes;
+                }
+                removeFile( blob );
+            }
+        }
+    }
+
+    /**
+     * @return The Content-Length of a blob or -1 if the server does not report it
+     */
+    private long head( Blob blob ) {
+        try {
+            HttpResponse<Empty> response = Unirest.head( QTFConfig.getFileUrl( blob.url ) ).asEmpty();
+            String length = response.getHeaders().getFirst( "Content-Length" );
+            if ( response.getStatus() == 200 && length != null && !length.isEmpty() ) {
+                return Long.parseLong( length.trim() );
+            }
+        } catch ( RuntimeException e ) {
+            log.debug( "Could not request the size of " + blob.url, e );
+        }
+        return -1;
+    }
+
+    /**
+     * @param count Number of blocks to fetch if the block is not cached
+     */
+    private byte[] getBlock( Blob blob, int index, int count ) {
+        Block key = new Block( blob, index );
+        byte[] block = fromMemory( key );
+        if ( block != null ) {
+            return block;
+        }
+        block = fromDisk( blob, index );
+        if ( block != null ) {
+            toMemory( key, block );
+            return block;
+        }
+        // only one thread fetches blocks of a blob at a time
+        synchronized ( blob ) {
+            block = fromMemory( key );
+            if ( block == null ) {
+                block = fromDisk( blob, index );
+            }
+            if ( block == null && (blob.size < 0 || (long) index * blockSize < blob.size) ) {
+                block = fetch( blob, index, missingBlocks( blob, index, count ) );
+            }
+        }
+        return block;
+    }
+
+    /**
+     * @return The number of consecutive blocks starting at index that are not cached, at most max
+     */
+    private int missingBlocks( Blob blob, int index, int max ) {
+        if ( blob.size >= 0 ) {
+            max = (int) Math.min( max, (blob.size + blockSize - 1) / blockSize - index );
+        }
+        int count = 1;
+        while ( count < max && !memory.containsKey( new Block( blob, index + count ) ) ) {
+            count++;
+        }
+        synchronized ( spilled ) {
+            for ( int i = 1; i < count; i++ ) {
+                if ( blob.onDisk.get( index + i ) ) {
+                    return i;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Fetch a range of blocks of a blob. If the server ignores the range, the whole blob is cached.
+     *
+     * @return The first block of the range
+     */
+    private byte[] fetch( Blob blob, int first, int count ) {
+        final long from = (long) first * blockSize;
+        long to = from + (long) count * blockSize - 1;
+        if ( blob.size >= 0 ) {
+            to = Math.min( to, blob.size - 1 );
+        }
+        final byte[][] out = new byte[1][];
+        try {
+            Unirest.get( QTFConfig.getFileUrl( blob.url ) ).header( "Range", "bytes=" + from + "-" + to ).thenConsume( response -> {
+                int status = response.getStatus();
+                if ( status == 416 ) {
+                    // the range starts after the end of the blob
+                    blob.size = totalSize( response.getHeaders().getFirst( "Content-Range" ) );
+                    return;
+                }
+                if ( status < 200 || status >= 300 ) {
+                    log.error( "Could not fetch " + blob.url + ": HTTP " + status );
+                    return;
+                }
+                int index = 0;
+                if ( status == 206 ) {
+                    long total = totalSize( response.getHeaders().getFirst( "Content-Range" ) );
+                    if ( total >= 0 ) {
+                        blob.size = total;
+                    }
+                    index = first;
+                }
+                try ( InputStream in = response.getContent() ) {
+                    for ( long position = (long) index * blockSize; ; index++ ) {
+                        byte[] block = in.readNBytes( blockSize );
+                        boolean last = block.length < blockSize;
+                        if ( last && (status != 206 || (blob.size < 0 && block.length > 0)) ) {
+                            // end of the blob
+                            blob.size = position + block.length;
+                        } else if ( last && position + block.length != blob.size ) {
+                            // the server returned a shorter range than requested
+                            break;
+                        }
+                        if ( block.length == 0 ) {
+                            break;
+                        }
+                        if ( index == first ) {
+                            out[0] = block;
+                        }
+                        toMemory( new Block( blob, index ), block );
+                        blob.fetched += block.length;
+                        position += block.length;
+                        if ( last ) {
+                            break;
+                        }
+                    }
+                } catch ( IOException e ) {
+                    log.error( "Could not fetch " + blob.url, e );
+                }
+            } );
+        } catch ( RuntimeException e ) {
+            log.error( "Could not fetch " + blob.url, e );
+        }
+        return out[0];
+    }
+
+    /**
+     * @param contentRange Content-Range header, e.g. "bytes 0-1023/4096"
+     * @return The total size or -1 if it is not known
+     */
+    private static long totalSize( String contentRange ) {
+        if ( contentRange == null || !contentRange.contains( "/" ) ) {
+            return -1;
+        }
+        String total = contentRange.substring( contentRange.lastIndexOf( "/" ) + 1 ).trim();
+        try {
+            return Long.parseLong( total );
+        } catch ( NumberFormatException e ) {
+            return -1;
+        }
+    }
+
+    private byte[] fromMemory( Block key ) {
+        CachedBlock cached = memory.get( key );
+        if ( cached == null ) {
+            return null;
+        }
+        if ( !cached.referenced ) {
+            cached.referenced = true;
+        }
+        return cached.data;
+    }
+
+    private void toMemory( Block key, byte[] block ) {
+        List<Entry<Block, byte[]>> evicted = new ArrayList<>();
+        synchronized ( clock ) {
+            CachedBlock replaced = memory.put( key, new CachedBlock( block ) );
+            if ( replaced != null ) {
+                memoryUsed -= replaced.data.length;
+            } else {
+                clock.add( key );
+            }
+            memoryUsed += block.length;
+            for ( int i = 2 * clock.size(); i > 0 && memoryUsed > memoryBudget; i-- ) {
+                Block eldest = clock.poll();
+                CachedBlock cached = memory.get( eldest );
+                if ( cached.referenced ) {
+                    cached.referenced = false;
+                    clock.add( eldest );
+                } else {
+                    memory.remove( eldest );
+                    memoryUsed -= cached.data.length;
+                    evicted.add( new SimpleImmutableEntry<>( eldest, cached.data ) );
+                }
+            }
+        }
+        for ( Entry<Block, byte[]> e : evicted ) {
+            toDisk( e.getKey().blob, e.getKey().index, e.getValue() );
+        }
+    }
+
+    private byte[] fromDisk( Blob blob, int index ) {
+        File file;
+        synchronized ( spilled ) {
+            if ( blob.file == null || !blob.onDisk.get( index ) ) {
+                return null;
+            }
+            file = blob.file;
+            spilled.get( blob );
+        }
+        long offset = (long) index * blockSize;
+        int length = blob.size < 0 ? blockSize : (int) Math.min( blockSize, blob.size - offset );
+        ByteBuffer block = ByteBuffer.allocate( length );
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+            while ( block.hasRemaining() ) {
+                if ( channel.read( block, offset + block.position() ) < 0 ) {
+                    return null;
+                }
+            }
+        } catch ( IOException e ) {
+            // the blob was removed from the disk in the meantime
+            return null;
+        }
+        return block.array();
+    }
+
+    private void toDisk( Blob blob, int index, byte[] block ) {
+        if ( diskBudget <= 0 ) {
+            return;
+        }
+        File file;
+        synchronized ( spilled ) {
+            if ( blob.onDisk.get( index ) ) {
+                return;
+            }
+            if ( blob.file == null ) {
+                try {
+                    blob.file = File.createTempFile( "qtf", SUFFIX, directory );
+                    blob.file.deleteOnExit();
+                } catch ( IOException e ) {
+                    log.error( "Could not create a file in the cache directory", e );
+                    return;
+                }
+            }
+            spilled.put( blob, true );
+            file = blob.file;
+        }
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.WRITE ) ) {
+            ByteBuffer src = ByteBuffer.wrap( block );
+            while ( src.hasRemaining() ) {
+                channel.write( src, (long) index * blockSize + src.position() );
+            }
+        } catch ( IOException e ) {
+            log.debug( "Could not write to the cache directory", e );
+            return;
+        }
+        synchronized ( spilled ) {
+            if ( blob.file != file || blob.onDisk.get( index ) ) {
+                return;
+            }
+            blob.onDisk.set( index );
+            blob.diskBytes += block.length;
+            diskUsed += block.length;
+            Iterator<Blob> it = spilled.keySet().iterator();
+            while ( diskUsed > diskBudget && it.hasNext() ) {
+                Blob eldest = it.next();
+                if ( eldest == blob ) {
+                    continue;
+                }
+                it.remove();
+                diskUsed -= eldest.diskBytes;
+                removeFile( eldest );
+            }
+        }
+    }
+
+    /**
+     * Remove the cached blocks of a blob from the disk. The caller needs to hold the monitor of {@link #spilled}.
+     */
+    private void removeFile( Blob blob ) {
+        if ( blob.file != null && !blob.file.delete() ) {
+            log.debug( "Could not delete " + blob.file );
+        }
+        blob.file = null;
+        blob.onDisk.clear();
+        blob.diskBytes = 0;
+    }
+
+}
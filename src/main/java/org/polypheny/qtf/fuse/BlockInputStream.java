@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019-2021 The Polypheny Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.polypheny.qtf.fuse;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Input stream over contents that are stored in blocks, e.g. the chunks of a {@link FileBuffer}.
+ * The blocks are read one after another, without copying them first.
+ */
+public abstract class BlockInputStream extends InputStream {
+
+    private ByteBuffer block;
+
+    /**
+     * @return A view of the next block, from its position to its limit, or null at the end of the contents
+     */
+    protected abstract ByteBuffer nextBlock() throws IOException;
+
+    static BlockInputStream of( ByteBuffer contents ) {
+        return new BlockInputStream() {
+            boolean done = false;
+
+            @Override
+            protected ByteBuffer nextBlock() {
+                if ( done ) {
+                    return null;
+                }
+                done = true;
+                return contents.duplicate();
+            }
+        };
+    }
+
+    /**
+     * @return false at the end of the contents
+     */
+    private boolean ensureBlock() throws IOException {
+        while ( block == null || !block.hasRemaining() ) {
+            block = nextBlock();
+            if ( block == null ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ( !ensureBlock() ) {
+            return -1;
+        }
+        return block.get() & 0xFF;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException {
+        if ( len == 0 ) {
+            return 0;
+        }
+        if ( !ensureBlock() ) {
+            return -1;
+        }
+        int n = Math.min( len, block.remaining() );
+        block.get( b, off, n );
+        return n;
+    }
+
+}
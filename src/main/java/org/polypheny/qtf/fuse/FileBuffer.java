@@ -0,0 +1,426 @@
+/*
+ * Copyright 2019-2021 The Polypheny Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.polypheny.qtf.fuse;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import lombok.extern.slf4j.Slf4j;
+
+
+/**
+ * Contents of a file that was written in the FS.
+ * The bytes are kept in chunks, so a file can grow without copying the bytes that were written before.
+ * All chunks but the last one have the full chunk size, the last one grows by doubling until it is full.
+ * The length of the file is tracked separately from the allocated capacity.
+ * Once the file or all buffers of the {@link ScratchSpace} exceed a threshold, the chunks are moved to a
+ * memory-mapped file in the scratch directory. Mapped chunks are read and written without copies on the heap,
+ * only streams copy them in small blocks, so a mapping is never used after it was unmapped.
+ * The mappings are unmapped and the file is deleted when the buffer is released.
+ */
+@Slf4j
+class FileBuffer {
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 64;
+    private static final int MAPPED_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int STREAM_BLOCK_SIZE = 1024 * 1024;
+    private static final byte[] ZEROS = new byte[64 * 1024];
+
+    private final ScratchSpace scratch;
+    private final ArrayList<byte[]> chunks = new ArrayList<>();
+    private long capacity = 0;
+    private volatile long length = 0;
+    /**
+     * Reads of the buffer do not block each other, changes are exclusive
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // set once the buffer was spilled
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private final ArrayList<MappedByteBuffer> mappings = new ArrayList<>();
+    private final ArrayList<Pointer> mapped = new ArrayList<>();
+
+
+    FileBuffer( ScratchSpace scratch ) {
+        this.scratch = scratch;
+        scratch.register( this );
+    }
+
+    long length() {
+        return length;
+    }
+
+    private int chunkSize() {
+        return channel != null ? MAPPED_CHUNK_SIZE : CHUNK_SIZE;
+    }
+
+    /**
+     * @return The number of bytes that were read
+     */
+    int read( Pointer buffer, long size, long offset ) {
+        lock.readLock().lock();
+        try {
+            final int chunkSize = chunkSize();
+            long end = Math.min( length, offset + size );
+            int total = 0;
+            for ( long position = offset; position < end; ) {
+                int index = (int) (position / chunkSize);
+                int inChunk = (int) (position % chunkSize);
+                int n = (int) Math.min( chunkSize - inChunk, end - position );
+                if ( channel != null ) {
+                    mapped.get( index ).transferTo( inChunk, buffer, total, n );
+                } else {
+                    buffer.put( total, chunks.get( index ), inChunk, n );
+                }
+                total += n;
+                position += n;
+            }
+            return total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return A stream over the contents, it reads the chunks directly
+     */
+    InputStream newInputStream() {
+        return new BlockInputStream() {
+            long position = 0;
+
+            @Override
+            protected ByteBuffer nextBlock() {
+                lock.readLock().lock();
+                try {
+                    if ( position >= length ) {
+                        return null;
+                    }
+                    final int chunkSize = chunkSize();
+                    int index = (int) (position / chunkSize);
+                    int inChunk = (int) (position % chunkSize);
+                    int n = (int) Math.min( chunkSize - inChunk, length - position );
+                    ByteBuffer block;
+                    if ( channel != null ) {
+                        // the mapping might be unmapped once the lock is released
+                        n = Math.min( n, STREAM_BLOCK_SIZE );
+                        byte[] copy = new byte[n];
+                        ByteBuffer mapping = mappings.get( index ).duplicate();
+                        mapping.position( inChunk );
+                        mapping.get( copy );
+                        block = ByteBuffer.wrap( copy );
+                    } else {
+                        block = ByteBuffer.wrap( chunks.get( index ) );
+                        block.limit( inChunk + n );
+                        block.position( inChunk );
+                    }
+                    position += n;
+                    return block;
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return false if the FS has no space left
+     */
+    boolean write( Pointer buffer, long size, long offset ) throws IOException {
+        lock.writeLock().lock();
+        try {
+            long end = offset + size;
+            if ( !grow( end, offset ) ) {
+                return false;
+            }
+            final int chunkSize = chunkSize();
+            int done = 0;
+            for ( long position = offset; position < end; ) {
+                int index = (int) (position / chunkSize);
+                int inChunk = (int) (position % chunkSize);
+                int n = (int) Math.min( chunkSize - inChunk, end - position );
+                if ( channel != null ) {
+                    mapped.get( index ).transferFrom( inChunk, buffer, done, n );
+                } else {
+                    buffer.get( done, chunks.get( index ), inChunk, n );
+                }
+                done += n;
+                position += n;
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Append bytes to the end of the buffer, from the position to the limit of data
+     *
+     * @return false if the FS has no space left
+     */
+    boolean append( ByteBuffer data ) throws IOException {
+        lock.writeLock().lock();
+        try {
+            ByteBuffer view = data.duplicate();
+            long position = length;
+            if ( !grow( length + view.remaining(), length ) ) {
+                return false;
+            }
+            final int chunkSize = chunkSize();
+            while ( view.hasRemaining() ) {
+                int index = (int) (position / chunkSize);
+                int inChunk = (int) (position % chunkSize);
+                int n = Math.min( chunkSize - inChunk, view.remaining() );
+                if ( channel != null ) {
+                    ByteBuffer target = mappings.get( index ).duplicate();
+                    target.position( inChunk );
+                    ByteBuffer part = view.duplicate();
+                    part.limit( part.position() + n );
+                    target.put( part );
+                } else {
+                    view.duplicate().get( chunks.get( index ), inChunk, n );
+                }
+                view.position( view.position() + n );
+                position += n;
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return false if the FS has no space left
+     */
+    boolean truncate( long size ) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if ( size > length ) {
+                return grow( size, size );
+            }
+            scratch.reserve( size - length );
+            length = size;
+            if ( channel == null ) {
+                // release the chunks that are no longer needed
+                int needed = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+                while ( chunks.size() > needed ) {
+                    byte[] chunk = chunks.remove( chunks.size() - 1 );
+                    capacity -= chunk.length;
+                    scratch.addHeap( -chunk.length );
+                }
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Release the memory and the scratch file of this buffer, the buffer cannot be used afterwards
+     */
+    void release() {
+        lock.writeLock().lock();
+        try {
+            scratch.unregister( this );
+            scratch.reserve( -length );
+            scratch.addHeap( -heapBytes() );
+            chunks.clear();
+            capacity = 0;
+            length = 0;
+            closeFile();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Increase the length of the buffer to at least size
+     *
+     * @param fillTo The new bytes up to this position are set to zero, the caller overwrites the others
+     */
+    private boolean grow( long size, long fillTo ) throws IOException {
+        if ( size <= length ) {
+            return true;
+        }
+        if ( !scratch.reserve( size - length ) ) {
+            return false;
+        }
+        try {
+            ensureCapacity( size );
+        } catch ( IOException | RuntimeException e ) {
+            scratch.reserve( length - size );
+            throw e;
+        }
+        // the gap may contain bytes of an earlier, longer version of the file
+        fill( length, Math.min( fillTo, size ) );
+        length = size;
+        return true;
+    }
+
+    private void fill( long from, long to ) {
+        final int chunkSize = chunkSize();
+        for ( long position = from; position < to; ) {
+            int index = (int) (position / chunkSize);
+            int inChunk = (int) (position % chunkSize);
+            int n = (int) Math.min( chunkSize - inChunk, to - position );
+            if ( channel != null ) {
+                ByteBuffer target = mappings.get( index ).duplicate();
+                target.position( inChunk );
+                for ( int left = n; left > 0; left -= ZEROS.length ) {
+                    target.put( ZEROS, 0, Math.min( left, ZEROS.length ) );
+                }
+            } else {
+                byte[] chunk = chunks.get( index );
+                Arrays.fill( chunk, inChunk, inChunk + n, (byte) 0 );
+            }
+            position += n;
+        }
+    }
+
+    private void ensureCapacity( long needed ) throws IOException {
+        if ( channel == null && needed > capacity
+                && (needed > scratch.fileThreshold || !scratch.fitsHeap( Math.min( needed - capacity, CHUNK_SIZE ) )) ) {
+            spill();
+        }
+        if ( channel != null ) {
+            while ( capacity < needed ) {
+                map();
+            }
+            return;
+        }
+        while ( capacity < needed ) {
+            int last = chunks.size() - 1;
+            if ( last >= 0 && chunks.get( last ).length < CHUNK_SIZE ) {
+                byte[] chunk = chunks.get( last );
+                long wanted = needed - (long) last * CHUNK_SIZE;
+                int size = (int) Math.min( CHUNK_SIZE, Math.max( wanted, 2L * chunk.length ) );
+                chunks.set( last, Arrays.copyOf( chunk, size ) );
+                capacity += size - chunk.length;
+                scratch.addHeap( size - chunk.length );
+            } else {
+                // once a file spans several chunks, new chunks are allocated with the full size right away
+                int size = last >= 0 ? CHUNK_SIZE : (int) Math.min( CHUNK_SIZE, Math.max( needed, MIN_CHUNK_SIZE ) );
+                chunks.add( new byte[size] );
+                capacity += size;
+                scratch.addHeap( size );
+            }
+        }
+    }
+
+    /**
+     * Move the chunks to a memory-mapped scratch file
+     */
+    private void spill() throws IOException {
+        log.debug( "Moving a file of " + length + " bytes to the scratch directory" );
+        file = scratch.createFile();
+        randomAccessFile = new RandomAccessFile( file, "rw" );
+        channel = randomAccessFile.getChannel();
+        capacity = 0;
+        try {
+            while ( capacity < length ) {
+                map();
+            }
+        } catch ( IOException e ) {
+            closeFile();
+            capacity = heapBytes();
+            throw e;
+        }
+        for ( int i = 0; i < chunks.size(); i++ ) {
+            byte[] chunk = chunks.get( i );
+            long position = (long) i * CHUNK_SIZE;
+            int n = (int) Math.min( chunk.length, length - position );
+            if ( n <= 0 ) {
+                break;
+            }
+            ByteBuffer target = mappings.get( (int) (position / MAPPED_CHUNK_SIZE) ).duplicate();
+            target.position( (int) (position % MAPPED_CHUNK_SIZE) );
+            target.put( chunk, 0, n );
+        }
+        scratch.addHeap( -heapBytes() );
+        chunks.clear();
+    }
+
+    /**
+     * Map the next chunk of the scratch file, the file grows sparsely
+     */
+    private void map() throws IOException {
+        MappedByteBuffer mapping = channel.map( MapMode.READ_WRITE, (long) mappings.size() * MAPPED_CHUNK_SIZE, MAPPED_CHUNK_SIZE );
+        mappings.add( mapping );
+        mapped.add( Pointer.wrap( Runtime.getSystemRuntime(), mapping ) );
+        capacity += MAPPED_CHUNK_SIZE;
+    }
+
+    private long heapBytes() {
+        long bytes = 0;
+        for ( byte[] chunk : chunks ) {
+            bytes += chunk.length;
+        }
+        return bytes;
+    }
+
+    private void closeFile() {
+        if ( channel == null ) {
+            return;
+        }
+        for ( MappedByteBuffer mapping : mappings ) {
+            unmap( mapping );
+        }
+        mappings.clear();
+        mapped.clear();
+        try {
+            randomAccessFile.close();
+        } catch ( IOException e ) {
+            log.debug( "Could not close " + file, e );
+        }
+        if ( !file.delete() ) {
+            log.debug( "Could not delete " + file );
+        }
+        randomAccessFile = null;
+        channel = null;
+        file = null;
+    }
+
+    /**
+     * Release a mapping right away instead of when it is garbage collected, so its file can be deleted.
+     * The mapping must not be used afterwards.
+     */
+    private static void unmap( MappedByteBuffer mapping ) {
+        try {
+            Class<?> unsafeClass = Class.forName( "sun.misc.Unsafe" );
+            Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+            theUnsafe.setAccessible( true );
+            unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class ).invoke( theUnsafe.get( null ), mapping );
+        } catch ( ReflectiveOperationException | RuntimeException e ) {
+            log.debug( "Could not unmap a scratch file, it is unmapped once it is garbage collected", e );
+        }
+    }
+
+}
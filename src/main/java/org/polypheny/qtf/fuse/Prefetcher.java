@@ -0,0 +1,266 @@
+/*
+ * Copyright 2019-2021 The Polypheny Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.polypheny.qtf.fuse;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.polypheny.qtf.QTFConfig;
+import org.polypheny.qtf.web.Result;
+
+
+/**
+ * Fetches the multimedia files of the mounted results in the background, if enabled, so they are cached before they are opened.
+ * The sizes of the files are requested when they are looked up, see {@link ResultFS#getattr}.
+ * Rows whose directories were listed recently are handled first, then the rows of the result that was mounted last,
+ * in order, and then those of the results that were mounted before.
+ * The files of the other rows are only fetched until the byte budget of their result is used up.
+ */
+@Slf4j
+public class Prefetcher {
+
+    /**
+     * Number of listed rows that are remembered
+     */
+    private static final int MAX_LISTED = 64;
+
+    private final BlobCache cache;
+    private final boolean fetch;
+    private final int threads;
+    private final long budget;
+    private final long maxFileBytes;
+    private ExecutorService workers;
+
+    /**
+     * The results whose files are handled, until they are stopped. Written while holding the monitor of this,
+     * read without it by listed.
+     */
+    private final Map<Result, State> states = new ConcurrentHashMap<>();
+    // the results in the order they are handled, the result that was started last first; guarded by this
+    private final Deque<State> order = new ArrayDeque<>();
+    /**
+     * Number of workers that wait for a task
+     */
+    private volatile int idle;
+    /**
+     * Rows that were listed, the most recent first. Rows are added without locking, so listing a directory never
+     * waits for the workers.
+     */
+    private final ConcurrentLinkedDeque<Listed> listed = new ConcurrentLinkedDeque<>();
+
+
+    /**
+     * The progress of a result, guarded by the monitor of the prefetcher
+     */
+    private static class State {
+
+        final Result result;
+        final int[] columns;
+        int nextRow;
+        long used;
+
+        State( Result result, int[] columns ) {
+            this.result = result;
+            this.columns = columns;
+        }
+
+    }
+
+
+    private static class Listed {
+
+        final State state;
+        final int row;
+
+        Listed( State state, int row ) {
+            this.state = state;
+            this.row = row;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            return o instanceof Listed && ((Listed) o).state == state && ((Listed) o).row == row;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode( state ) * 31 + row;
+        }
+
+    }
+
+
+    private static class Task {
+
+        final State state;
+        final int row;
+        final boolean charged;
+
+        Task( State state, int row, boolean charged ) {
+            this.state = state;
+            this.row = row;
+            this.charged = charged;
+        }
+
+    }
+
+
+    public Prefetcher( BlobCache cache ) {
+        this.cache = cache;
+        this.fetch = QTFConfig.isPrefetch();
+        this.threads = QTFConfig.getPrefetchThreads();
+        this.budget = QTFConfig.getPrefetchMB() * 1024L * 1024L;
+        this.maxFileBytes = QTFConfig.getPrefetchFileKB() * 1024L;
+    }
+
+    /**
+     * Start to handle the multimedia files of a result, before the files of the results that were started earlier
+     */
+    public synchronized void start( Result result ) {
+        if ( !fetch ) {
+            return;
+        }
+        List<Integer> multimedia = new ArrayList<>();
+        for ( int i = 0; i < result.header.length; i++ ) {
+            if ( result.isMultimedia( i ) ) {
+                multimedia.add( i );
+            }
+        }
+        stop( result );
+        if ( multimedia.isEmpty() ) {
+            return;
+        }
+        State state = new State( result, multimedia.stream().mapToInt( Integer::intValue ).toArray() );
+        states.put( result, state );
+        order.addFirst( state );
+        if ( workers == null ) {
+            AtomicInteger counter = new AtomicInteger();
+            workers = Executors.newFixedThreadPool( threads, r -> {
+                Thread t = new Thread( r, "prefetch-" + counter.incrementAndGet() );
+                t.setDaemon( true );
+                return t;
+            } );
+            for ( int i = 0; i < threads; i++ ) {
+                workers.submit( this::work );
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Stop to handle the files of all results
+     */
+    public synchronized void stop() {
+        states.clear();
+        order.clear();
+        listed.clear();
+    }
+
+    /**
+     * Stop to handle the files of a result, e.g. because it was unmounted
+     */
+    public synchronized void stop( Result result ) {
+        State state = states.remove( result );
+        if ( state != null ) {
+            order.remove( state );
+            listed.removeIf( l -> l.state == state );
+        }
+    }
+
+    /**
+     * Handle the files of a row next, because its directory was listed
+     */
+    public void listed( Result result, int row ) {
+        State state = states.get( result );
+        if ( state == null ) {
+            return;
+        }
+        Listed l = new Listed( state, row );
+        listed.remove( l );
+        listed.addFirst( l );
+        if ( listed.size() > MAX_LISTED ) {
+            listed.pollLast();
+        }
+        if ( idle > 0 ) {
+            synchronized ( this ) {
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized Task take() throws InterruptedException {
+        while ( true ) {
+            // the worker counts as idle before it checks for listed rows, so a row that is listed afterwards wakes it up
+            idle++;
+            try {
+                Listed l = listed.pollFirst();
+                if ( l != null && states.get( l.state.result ) == l.state ) {
+                    return new Task( l.state, l.row, false );
+                }
+                if ( l == null ) {
+                    for ( State state : order ) {
+                        if ( state.used < budget && state.nextRow < state.result.getRowCount() ) {
+                            return new Task( state, state.nextRow++, true );
+                        }
+                    }
+                    wait();
+                }
+            } finally {
+                idle--;
+            }
+        }
+    }
+
+    private synchronized void charge( State state, long bytes ) {
+        state.used += bytes;
+    }
+
+    private void work() {
+        while ( !Thread.currentThread().isInterrupted() ) {
+            Task task;
+            try {
+                task = take();
+            } catch ( InterruptedException e ) {
+                return;
+            }
+            Result result = task.state.result;
+            for ( int column : task.state.columns ) {
+                if ( result.isNull( task.row, column ) ) {
+                    continue;
+                }
+                try {
+                    long bytes = cache.prefetch( result.getValue( task.row, column ), maxFileBytes );
+                    if ( task.charged ) {
+                        charge( task.state, bytes );
+                    }
+                } catch ( RuntimeException e ) {
+                    log.debug( "Could not prefetch a file of row " + task.row, e );
+                }
+            }
+        }
+    }
+
+}
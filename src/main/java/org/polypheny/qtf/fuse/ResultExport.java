@@ -0,0 +1,284 @@
+/*
+ * Copyright 2019-2021 The Polypheny Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.polypheny.qtf.fuse;
+
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import jnr.ffi.Pointer;
+import org.polypheny.qtf.QTFConfig;
+import org.polypheny.qtf.web.Result;
+import org.polypheny.qtf.web.Result.DbColumn;
+
+
+/**
+ * The contents of a file that holds a whole result, e.g. result.csv. The file is never held in memory:
+ * it consists of a header, a sequence of chunks, e.g. the rows of a CSV file, and a trailer, which are rendered
+ * from the result when they are read. The offset of each chunk in the file is determined once,
+ * so a read at any offset only renders the chunks it covers.
+ */
+public abstract class ResultExport {
+
+    protected final Result result;
+    /**
+     * Offset of the header, of each chunk and of the trailer in the file, followed by the length of the file.
+     * Built on first access.
+     */
+    private volatile long[] offsets;
+    private byte[] header;
+    private byte[] trailer;
+    /**
+     * The segment that was rendered last, reads of consecutive ranges mostly hit the same segment
+     */
+    private volatile Segment last;
+
+
+    private static class Segment {
+
+        final int index;
+        final byte[] bytes;
+
+        Segment( int index, byte[] bytes ) {
+            this.index = index;
+            this.bytes = bytes;
+        }
+
+    }
+
+
+    protected ResultExport( Result result ) {
+        this.result = result;
+    }
+
+    /**
+     * @return A CSV file with a header line, see RFC 4180
+     */
+    public static ResultExport csv( Result result ) {
+        return new Csv( result );
+    }
+
+    /**
+     * @return A file with a JSON object per row
+     */
+    public static ResultExport jsonLines( Result result ) {
+        return new JsonLines( result );
+    }
+
+    /**
+     * @return A file in the Arrow IPC file format
+     */
+    public static ResultExport arrow( Result result ) {
+        return new ArrowExport( result, QTFConfig.getArrowBatchRows() );
+    }
+
+    protected abstract byte[] renderHeader();
+
+    /**
+     * @return The number of chunks of the file, the rows by default
+     */
+    protected int getChunkCount() {
+        return result.getRowCount();
+    }
+
+    protected abstract byte[] render( int chunk );
+
+    /**
+     * @return The length of a chunk, used to determine the offsets of the chunks without keeping them
+     */
+    protected long getLength( int chunk ) {
+        return render( chunk ).length;
+    }
+
+    /**
+     * @param offsets The offsets of the chunks in the file, offsets[i] is the offset of chunk i
+     */
+    protected byte[] renderTrailer( long[] offsets ) {
+        return new byte[0];
+    }
+
+    /**
+     * @return The length of the file in bytes, all chunks are measured once to determine it
+     */
+    public long length() {
+        long[] offsets = index();
+        return offsets[offsets.length - 1];
+    }
+
+    private long[] index() {
+        long[] offsets = this.offsets;
+        if ( offsets != null ) {
+            return offsets;
+        }
+        synchronized ( this ) {
+            if ( this.offsets == null ) {
+                header = renderHeader();
+                int chunks = getChunkCount();
+                offsets = new long[chunks + 3];
+                long offset = header.length;
+                for ( int i = 0; i < chunks; i++ ) {
+                    offsets[i + 1] = offset;
+                    offset += getLength( i );
+                }
+                offsets[chunks + 1] = offset;
+                trailer = renderTrailer( Arrays.copyOfRange( offsets, 1, chunks + 1 ) );
+                offsets[chunks + 2] = offset + trailer.length;
+                this.offsets = offsets;
+            }
+            return this.offsets;
+        }
+    }
+
+    /**
+     * @param segment 0 for the header, i + 1 for chunk i and the number of chunks + 1 for the trailer
+     */
+    private byte[] getSegment( int segment, int segments ) {
+        if ( segment == 0 ) {
+            return header;
+        } else if ( segment == segments - 1 ) {
+            return trailer;
+        }
+        Segment last = this.last;
+        if ( last != null && last.index == segment ) {
+            return last.bytes;
+        }
+        byte[] bytes = render( segment - 1 );
+        this.last = new Segment( segment, bytes );
+        return bytes;
+    }
+
+    public int read( Pointer buffer, long size, long offset ) {
+        long[] offsets = index();
+        int segments = offsets.length - 1;
+        int bytesToRead = (int) Math.max( 0, Math.min( offsets[segments] - offset, size ) );
+        if ( bytesToRead == 0 ) {
+            return 0;
+        }
+        int segment = Arrays.binarySearch( offsets, 0, segments, offset );
+        if ( segment < 0 ) {
+            // the offset is within the segment before the insertion point
+            segment = -segment - 2;
+        }
+        int written = 0;
+        long position = offset;
+        while ( written < bytesToRead ) {
+            // segments can be empty, e.g. the header of a JSON Lines file
+            while ( position >= offsets[segment + 1] ) {
+                segment++;
+            }
+            byte[] bytes = getSegment( segment, segments );
+            int from = (int) (position - offsets[segment]);
+            int n = Math.min( bytes.length - from, bytesToRead - written );
+            buffer.put( written, bytes, from, n );
+            written += n;
+            position += n;
+            segment++;
+        }
+        return bytesToRead;
+    }
+
+
+    private static class Csv extends ResultExport {
+
+        Csv( Result result ) {
+            super( result );
+        }
+
+        @Override
+        protected byte[] renderHeader() {
+            StringBuilder line = new StringBuilder();
+            for ( int h = 0; h < result.header.length; h++ ) {
+                if ( h > 0 ) {
+                    line.append( ',' );
+                }
+                appendField( line, result.header[h].name );
+            }
+            return line.append( '\n' ).toString().getBytes( StandardCharsets.UTF_8 );
+        }
+
+        @Override
+        protected byte[] render( int row ) {
+            StringBuilder line = new StringBuilder();
+            for ( int h = 0; h < result.header.length; h++ ) {
+                if ( h > 0 ) {
+                    line.append( ',' );
+                }
+                // null is an empty field
+                if ( !result.isNull( row, h ) ) {
+                    appendField( line, result.getValue( row, h ) );
+                }
+            }
+            return line.append( '\n' ).toString().getBytes( StandardCharsets.UTF_8 );
+        }
+
+        private static void appendField( StringBuilder line, String value ) {
+            boolean quote = value.isEmpty() || value.indexOf( ',' ) >= 0 || value.indexOf( '"' ) >= 0
+                    || value.indexOf( '\n' ) >= 0 || value.indexOf( '\r' ) >= 0;
+            if ( !quote ) {
+                line.append( value );
+                return;
+            }
+            // an empty string is quoted to distinguish it from null
+            line.append( '"' ).append( value.replace( "\"", "\"\"" ) ).append( '"' );
+        }
+
+    }
+
+
+    private static class JsonLines extends ResultExport {
+
+        JsonLines( Result result ) {
+            super( result );
+        }
+
+        @Override
+        protected byte[] renderHeader() {
+            return new byte[0];
+        }
+
+        @Override
+        protected byte[] render( int row ) {
+            StringWriter line = new StringWriter();
+            try ( JsonWriter writer = new JsonWriter( line ) ) {
+                writer.beginObject();
+                for ( int h = 0; h < result.header.length; h++ ) {
+                    DbColumn column = result.header[h];
+                    writer.name( column.name );
+                    String value = result.getValue( row, h );
+                    if ( value == null ) {
+                        writer.nullValue();
+                    } else if ( column.isNumeric() && column.isValid( value ) ) {
+                        writer.jsonValue( value );
+                    } else if ( column.isBoolean() && column.isValid( value ) ) {
+                        writer.value( Boolean.parseBoolean( value ) );
+                    } else {
+                        writer.value( value );
+                    }
+                }
+                writer.endObject();
+            } catch ( IOException e ) {
+                throw new UncheckedIOException( e );
+            }
+            return line.append( '\n' ).toString().getBytes( StandardCharsets.UTF_8 );
+        }
+
+    }
+
+}
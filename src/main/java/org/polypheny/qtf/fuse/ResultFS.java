@@ -17,16 +17,35 @@
 package org.polypheny.qtf.fuse;
 
 
-import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import jnr.ffi.Pointer;
 import jnr.ffi.types.mode_t;
 import jnr.ffi.types.off_t;
 import jnr.ffi.types.size_t;
-import kong.unirest.HttpResponse;
-import kong.unirest.Unirest;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -34,6 +53,8 @@ import org.polypheny.qtf.QTFConfig;
 import org.polypheny.qtf.web.BatchUpdateRequest;
 import org.polypheny.qtf.web.BatchUpdateRequest.Update;
 import org.polypheny.qtf.web.Result;
+import org.polypheny.qtf.web.Result.DbColumn;
+import org.polypheny.qtf.web.UIRequest.QueryRequest;
 import ru.serce.jnrfuse.ErrorCodes;
 import ru.serce.jnrfuse.FuseFillDir;
 import ru.serce.jnrfuse.FuseStubFS;
@@ -47,90 +68,419 @@ import ru.serce.jnrfuse.struct.Statvfs;
 //see https://github.com/SerCeMan/jnr-fuse/blob/master/src/main/java/ru/serce/jnrfuse/examples/MemoryFS.java
 public class ResultFS extends FuseStubFS {
 
+    private static final long ROOT_INODE = 1;
+
     public enum Operation {
         CREATE, UNLINK, WRITE
     }
 
 
+    /**
+     * How a result is mapped to the FS
+     */
+    public enum Layout {
+        /**
+         * A directory per row with a file per column: /&lt;row&gt;/&lt;column&gt;.&lt;ext&gt;
+         */
+        ROWS,
+        /**
+         * A directory per column with a file per row: /&lt;column&gt;/&lt;row&gt;.&lt;ext&gt;
+         */
+        COLUMNS
+    }
+
+
+    /**
+     * Directories in the namespace of a table whose subdirectories stand for the rows of the table that match
+     * the predicate in their name. The rows are queried once such a subdirectory is looked up, see {@link #resolve}
+     */
+    private enum Filter {
+        /**
+         * The rows with a value in a column: /&lt;namespace&gt;/by/&lt;column&gt;=&lt;value&gt;
+         */
+        BY,
+        /**
+         * The row with a primary key, the values of a composite key are separated by commas: /&lt;namespace&gt;/pk/&lt;value&gt;
+         */
+        PK;
+
+        String getDirectoryName() {
+            return name().toLowerCase( Locale.ROOT );
+        }
+    }
+
+
+    /**
+     * Submits the queries of the views that are resolved in the FS
+     */
+    public interface ViewHandler {
+
+        /**
+         * Submit the query of a view, its result is mounted in the namespace of the view
+         */
+        void submit( Namespace view, String query );
+
+    }
+
+
     public static class ResultDirectory extends ResultPath {
 
-        private final HashMap<String, ResultPath> contents = new HashMap<>();
-        private final Result result;
-        private final int ithRow;
+        /**
+         * Offset of the first child in a listing, 1 and 2 are the offsets of "." and ".."
+         */
+        private static final long FIRST_OFFSET = 3;
+
+        /**
+         * Lookups and listings do not lock, changes to the contents are made while holding the monitor of the directory
+         */
+        private final ConcurrentHashMap<String, ResultPath> contents = new ConcurrentHashMap<>();
+        /**
+         * The names of the contents in the order they were added, keyed by the offset of their entry in a listing.
+         * A listing that is continued at an offset resumes after that entry, even if entries were added or removed meanwhile.
+         */
+        private final ConcurrentSkipListMap<Long, String> listing = new ConcurrentSkipListMap<>();
+        // guarded by this
+        private final HashMap<String, Long> offsets = new HashMap<>();
+        private long nextOffset = FIRST_OFFSET;
+        private final ResultFS fs;
+        /**
+         * The namespace this directory belongs to, null for the root directory and directories created in it
+         */
+        private final Namespace namespace;
+        /**
+         * The row of a row directory, it changes when the namespace is refreshed, see {@link #rebind}
+         */
+        private volatile Result result;
+        private volatile int ithRow;
+        /**
+         * The column of a column directory, -1 for all other directories
+         */
+        private final int column;
+        /**
+         * Set for the by and pk directories of a namespace, null for all other directories
+         */
+        private volatile Filter filter;
+        /**
+         * If the directory groups row directories or other buckets, see {@link ResultFS#getBucket}
+         */
+        private volatile boolean bucket;
+        /**
+         * The files of a row directory are only built from the result once the directory is accessed
+         * and can be released again, as long as none of them were changed.
+         */
+        private volatile boolean loaded;
+        /**
+         * Set on every access, used to determine which loaded rows can be released
+         */
+        private volatile boolean referenced;
+        /**
+         * Set once a file of the row was changed, until the changes were committed.
+         * A pinned row is dropped from the loaded rows, so the clock does not pass it on every load, see {@link ResultFS#loaded}
+         */
+        private volatile boolean pinned;
+        /**
+         * If the row is in the loaded rows, guarded by their monitor
+         */
+        private boolean queued;
 
-        private ResultDirectory( String name ) {
-            super( name );
+        private ResultDirectory( String name, ResultFS fs ) {
+            super( name, null, ROOT_INODE );
+            this.fs = fs;
+            this.namespace = null;
             this.result = null;
             this.ithRow = -1;
+            this.column = -1;
+            this.loaded = true;
         }
 
-        public ResultDirectory( String name, ResultDirectory parent ) {
-            super( name, parent );
+        private ResultDirectory( String name, ResultDirectory parent, Namespace namespace ) {
+            super( name, parent, parent.fs.inodes.getAndIncrement() );
+            this.fs = parent.fs;
+            this.namespace = namespace;
             this.result = null;
             this.ithRow = -1;
+            this.column = -1;
+            this.loaded = true;
+        }
+
+        public ResultDirectory( String name, ResultDirectory parent ) {
+            this( name, parent, parent.namespace );
         }
 
         public ResultDirectory( ResultDirectory parent, Result result, int ithRow ) {
-            super( String.valueOf( ithRow ), parent );
+            this( String.valueOf( ithRow ), parent, result, ithRow );
+        }
+
+        public ResultDirectory( String name, ResultDirectory parent, Result result, int ithRow ) {
+            this( name, parent, result, ithRow, -1, result.header.length );
+        }
+
+        /**
+         * A row or column directory reserves an inode for each of its files, so the files keep their inodes
+         * when they are released and built again, see {@link #newFile}
+         */
+        private ResultDirectory( String name, ResultDirectory parent, Result result, int ithRow, int column, int files ) {
+            super( name, parent, parent.fs.inodes.getAndAdd( 1 + files ) );
+            this.fs = parent.fs;
+            this.namespace = parent.namespace;
             this.result = result;
             this.ithRow = ithRow;
+            this.column = column;
+            this.loaded = false;
+        }
+
+        /**
+         * @return The directory of a column of a complete result, with a file per row
+         */
+        private static ResultDirectory ofColumn( ResultDirectory parent, Result result, int column ) {
+            return new ResultDirectory( result.header[column].name, parent, result, -1, column, result.getRowCount() );
         }
 
         public synchronized void add( ResultPath p ) {
-            contents.put( p.name, p );
+            load();
             p.parent = this;
+            put( p.name, p );
+            touch();
         }
 
         private synchronized void deleteChild( ResultPath child ) {
-            contents.remove( child.name );
+            ResultPath removed = remove( child.name );
+            if ( removed != null ) {
+                fs.unindex( getPath() + "/" + child.name, removed );
+                touch();
+            }
         }
 
-        @Override
-        protected boolean isDeleted() {
-            return false;
+        /**
+         * Add a child and keep the path index of the FS up to date. The caller needs to hold the monitor of this directory.
+         * A child that replaces another one keeps its position in listings.
+         */
+        private void put( String name, ResultPath p ) {
+            ResultPath replaced = contents.put( name, p );
+            if ( !offsets.containsKey( name ) ) {
+                long offset = nextOffset++;
+                offsets.put( name, offset );
+                listing.put( offset, name );
+            }
+            if ( isDetached() ) {
+                // e.g. a row that arrives after its namespace was unmounted, its path might belong to another namespace
+                return;
+            }
+            String path = getPath() + "/" + name;
+            if ( replaced != null && replaced != p ) {
+                fs.unindex( path, replaced );
+            }
+            fs.index( path, p );
         }
 
-        @Override
-        protected ResultPath find( String path ) {
-            ResultPath findPath = super.find( path );
-            if ( findPath != null && !findPath.isDeleted() ) {
-                return findPath;
+        /**
+         * @return true if this directory is no longer part of the tree below the root directory
+         */
+        private boolean isDetached() {
+            ResultDirectory dir = this;
+            while ( dir.parent != null ) {
+                dir = dir.parent;
+            }
+            return dir != fs.rootDirectory;
+        }
+
+        /**
+         * Remove a child without updating the path index. The caller needs to hold the monitor of this directory.
+         */
+        private ResultPath remove( String name ) {
+            Long offset = offsets.remove( name );
+            if ( offset != null ) {
+                listing.remove( offset );
+            }
+            return contents.remove( name );
+        }
+
+        /**
+         * Remove all children without updating the path index. The caller needs to hold the monitor of this directory.
+         * The offsets start over, so the files of a row get the same offsets when they are loaded again.
+         */
+        private void clear() {
+            listing.clear();
+            offsets.clear();
+            contents.clear();
+            nextOffset = FIRST_OFFSET;
+        }
+
+        /**
+         * Build the files of a row or column directory if they are not in memory
+         */
+        public void load() {
+            if ( !referenced ) {
+                referenced = true;
             }
-            while ( path.startsWith( "/" ) ) {
-                path = path.substring( 1 );
+            if ( loaded ) {
+                return;
             }
             synchronized ( this ) {
-                if ( !path.contains( "/" ) ) {
-                    ResultPath out = contents.get( path );
-                    if ( out != null && !out.isDeleted() ) {
-                        return out;
-                    } else {
-                        return null;
+                if ( loaded ) {
+                    return;
+                }
+                if ( column >= 0 ) {
+                    for ( int i = 0; i < result.getRowCount(); i++ ) {
+                        if ( !result.isNull( i, column ) ) {
+                            ResultFile file = newFile( i, column );
+                            put( file.name, file );
+                        }
+                    }
+                } else {
+                    for ( int h = 0; h < result.header.length; h++ ) {
+                        if ( !result.isNull( ithRow, h ) ) {
+                            ResultFile file = newFile( ithRow, h );
+                            put( file.name, file );
+                        }
                     }
                 }
-                String nextName = path.substring( 0, path.indexOf( "/" ) );
-                String rest = path.substring( path.indexOf( "/" ) );
-                if ( contents.containsKey( nextName ) ) {
-                    ResultPath out = contents.get( nextName ).find( rest );
-                    if ( out != null && !out.isDeleted() ) {
-                        return out;
-                    } else {
-                        return null;
+                loaded = true;
+            }
+            fs.loaded( this );
+        }
+
+        /**
+         * Build the file of a cell of the row or column, the cell must not be null.
+         * It is named after its column in a row directory and after its row in a column directory.
+         */
+        private ResultFile newFile( int row, int column ) {
+            String name = this.column >= 0 ? String.valueOf( row ) : result.header[column].name;
+            ResultFile file;
+            if ( result.isMultimedia( column ) ) {
+                file = ResultFile.ofUrl( name, result.getValue( row, column ), this );
+            } else {
+                file = ResultFile.ofData( name, result.getBytes( row, column ), this );
+            }
+            file.inode = inode + 1 + (this.column >= 0 ? row : column);
+            file.modified = modified;
+            return file;
+        }
+
+        /**
+         * Point a row directory to the row with the same primary key in a refreshed result with the same columns.
+         * If the files of the row are loaded, only the files of cells that changed are replaced.
+         * Files that were changed in the FS are kept.
+         */
+        private synchronized void rebind( Result fresh, int freshRow ) {
+            Result old = result;
+            int oldRow = ithRow;
+            result = fresh;
+            ithRow = freshRow;
+            if ( !loaded ) {
+                return;
+            }
+            String path = getPath();
+            for ( int h = 0; h < fresh.header.length; h++ ) {
+                String oldName = ResultFile.nameOf( old, oldRow, h );
+                ResultPath existing = oldName == null ? null : contents.get( oldName );
+                if ( existing instanceof ResultFile && ((ResultFile) existing).createdByFS ) {
+                    continue;
+                }
+                ByteBuffer cell = fresh.getBytes( freshRow, h );
+                if ( Objects.equals( old.getBytes( oldRow, h ), cell ) ) {
+                    if ( existing instanceof ResultFile ) {
+                        // the file no longer refers to the old result
+                        ((ResultFile) existing).rebind( cell );
                     }
+                    continue;
+                }
+                if ( existing != null ) {
+                    remove( oldName );
+                    fs.unindex( path + "/" + oldName, existing );
+                }
+                if ( cell != null ) {
+                    ResultFile file = newFile( freshRow, h );
+                    put( file.name, file );
                 }
             }
-            return null;
+        }
+
+        /**
+         * Release the files of a row directory
+         *
+         * @return false if the files cannot be released because they contain changes
+         */
+        private synchronized boolean unload() {
+            if ( result == null ) {
+                return false;
+            }
+            for ( ResultPath p : contents.values() ) {
+                // a writer that looked up a file before it was changed registered under the lock of this directory
+                if ( !(p instanceof ResultFile) || ((ResultFile) p).createdByFS || ((ResultFile) p).writers > 0 ) {
+                    return false;
+                }
+            }
+            String path = getPath();
+            for ( ResultPath p : contents.values() ) {
+                fs.unindex( path + "/" + p.name, p );
+                // files that were committed still hold their written contents
+                ((ResultFile) p).release();
+            }
+            clear();
+            loaded = false;
+            return true;
+        }
+
+        @Override
+        protected boolean isDeleted() {
+            return false;
         }
 
         @Override
-        protected void getattr( FileStat stat, FuseContext context ) {
+        protected int getattr( FileStat stat, FuseContext context ) {
+            super.getattr( stat, context );
             stat.st_mode.set( FileStat.S_IFDIR | 0777 );
-            stat.st_uid.set( context.uid.get() );
-            stat.st_gid.set( context.gid.get() );
+            stat.st_nlink.set( 2 );
+            stat.st_size.set( 0 );
+            stat.st_blocks.set( 0 );
+            return 0;
+        }
+
+        /**
+         * Request the unknown sizes of the multimedia files of a row directory in parallel,
+         * so the attributes of the row are reported after the slowest request rather than after all of them in turn
+         */
+        private void statFiles() {
+            if ( ithRow < 0 || column >= 0 ) {
+                // the files of a column directory are requested one by one, it might have millions of them
+                return;
+            }
+            load();
+            synchronized ( this ) {
+                for ( ResultPath p : contents.values() ) {
+                    if ( p instanceof ResultFile && ((ResultFile) p).url != null ) {
+                        ((ResultFile) p).cache.statAsync( ((ResultFile) p).url );
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return The bucket with the given name, it is created if it does not exist yet
+         */
+        private ResultDirectory getBucket( String name ) {
+            ResultPath p = contents.get( name );
+            if ( p instanceof ResultDirectory ) {
+                return (ResultDirectory) p;
+            }
+            synchronized ( this ) {
+                p = contents.get( name );
+                if ( p instanceof ResultDirectory ) {
+                    return (ResultDirectory) p;
+                }
+                ResultDirectory bucket = new ResultDirectory( name, this );
+                bucket.bucket = true;
+                put( name, bucket );
+                touch();
+                return bucket;
+            }
         }
 
         private synchronized void mkdir( String lastComponent ) {
-            contents.put( lastComponent, new ResultDirectory( lastComponent, this ) );
+            load();
+            put( lastComponent, new ResultDirectory( lastComponent, this ) );
+            touch();
         }
 
         /**
@@ -140,6 +490,7 @@ public class ResultFS extends FuseStubFS {
          * @param generateQuery If the creation of this file will lead to a insert/update query
          */
         public synchronized void mkfile( String lastComponent, boolean generateQuery ) {
+            load();
             if ( generateQuery ) {
                 ResultPath existing = contents.get( lastComponent );
                 if ( existing != null ) {
@@ -147,246 +498,1424 @@ public class ResultFS extends FuseStubFS {
                     rf.setOperation( Operation.CREATE );
                     rf.setName( lastComponent );
                 } else {
-                    contents.put( lastComponent, new ResultFile( lastComponent, this, true ).setOperation( Operation.CREATE ) );
+                    put( lastComponent, new ResultFile( lastComponent, this, true ).setOperation( Operation.CREATE ) );
+                }
+            } else {
+                put( lastComponent, new ResultFile( lastComponent, this, true ) );
+            }
+            touch();
+        }
+
+        /**
+         * List the contents of the directory, starting after the entry with the given offset.
+         * Each entry is passed with its own offset, so the kernel can continue the listing once its buffer is full.
+         * No attributes are passed: libfuse 2, which jnr-fuse binds, only takes the inode and type of an entry
+         * from them and has no readdirplus, so the kernel calls getattr for each entry anyway, see {@link #statFiles}.
+         */
+        public void read( Pointer buf, FuseFillDir filler, long offset ) {
+            load();
+            if ( offset < 1 && filler.apply( buf, ".", null, 1 ) != 0 ) {
+                return;
+            }
+            if ( offset < 2 && filler.apply( buf, "..", null, 2 ) != 0 ) {
+                return;
+            }
+            for ( Map.Entry<Long, String> entry : listing.tailMap( offset, false ).entrySet() ) {
+                ResultPath p = contents.get( entry.getValue() );
+                if ( p == null || p.isDeleted() ) {
+                    continue;
+                }
+                if ( filler.apply( buf, p.name, null, entry.getKey() ) != 0 ) {
+                    return;
+                }
+            }
+        }
+    }
+
+
+    public static class ResultFile extends ResultPath {
+
+        /**
+         * Contents of the file, as long as it was not modified. Files of a result are read-only views of the
+         * column store of the result.
+         * The contents are read without locking: a writer sets the write buffer before it clears the contents,
+         * so a reader that reads the contents before the write buffer always sees one of them.
+         */
+        private volatile ByteBuffer contents = ByteBuffer.allocate( 0 );
+        /**
+         * Contents of the file once it was modified, null before
+         */
+        private volatile FileBuffer writeBuffer;
+        private final ScratchSpace scratch;
+        /**
+         * Files of multimedia columns are served from the blob cache, until they are modified
+         */
+        private volatile String url;
+        private BlobCache cache;
+        /**
+         * Files that hold the whole result, e.g. result.csv, are rendered from the result. They cannot be modified.
+         */
+        private ResultExport export;
+        boolean createdByFS;
+        /**
+         * Number of writes in progress, guarded by the monitor of the parent directory, see {@link #beginWrite}
+         */
+        private int writers;
+        /**
+         * Number of times the file was changed, to tell whether it was changed again while it was committed
+         */
+        private final AtomicInteger changes = new AtomicInteger();
+        @Getter
+        private Operation lastOp = Operation.CREATE;
+        @Getter
+        private boolean deleted = false;
+
+        /**
+         * This constructor is called by mkfile
+         * (when a file is created by the FS)
+         */
+        private ResultFile( String name, ResultDirectory parent, boolean createdByFS ) {
+            super( name, parent, parent.fs.inodes.getAndIncrement() );
+            this.createdByFS = createdByFS;
+            this.scratch = parent.fs.scratch;
+        }
+
+        public static ResultFile ofData( String name, ByteBuffer data, ResultDirectory parent ) {
+            ResultFile file = new ResultFile( name + ".txt", parent, false );
+            file.contents = data;
+            return file;
+        }
+
+        public static ResultFile ofUrl( String name, String url, ResultDirectory parent ) {
+            ResultFile file = new ResultFile( name + extension( url ), parent, false );
+            file.url = url;
+            file.cache = parent.fs.blobCache;
+            return file;
+        }
+
+        public static ResultFile ofExport( String name, ResultExport export, ResultDirectory parent ) {
+            ResultFile file = new ResultFile( name, parent, false );
+            file.export = export;
+            return file;
+        }
+
+        public boolean isReadOnly() {
+            return export != null;
+        }
+
+        private static String extension( String url ) {
+            if ( url.contains( "." ) ) {
+                return url.substring( url.lastIndexOf( "." ) );
+            }
+            return "";
+        }
+
+        /**
+         * @return The name of the file of a cell, or null if the cell is null
+         */
+        private static String nameOf( Result result, int row, int column ) {
+            if ( result.isNull( row, column ) ) {
+                return null;
+            }
+            String name = result.header[column].name;
+            return result.isMultimedia( column ) ? name + extension( result.getValue( row, column ) ) : name + ".txt";
+        }
+
+        @Override
+        protected int getattr( FileStat stat, FuseContext context ) {
+            super.getattr( stat, context );
+            long size;
+            String url = this.url;
+            if ( url != null ) {
+                // the kernel caches the attributes, so the size of a multimedia file is not reported before it is known
+                size = cache.getKnownSize( url );
+                ResultDirectory parent = this.parent;
+                if ( size < 0 && parent != null ) {
+                    parent.statFiles();
+                }
+                if ( size < 0 && (size = cache.stat( url )) < 0 ) {
+                    return -ErrorCodes.EIO();
                 }
             } else {
-                contents.put( lastComponent, new ResultFile( lastComponent, this, true ) );
+                size = getSize();
+            }
+            stat.st_mode.set( FileStat.S_IFREG | (isReadOnly() ? 0444 : 0777) );
+            stat.st_nlink.set( 1 );
+            stat.st_size.set( size );
+            stat.st_blocks.set( (size + 511) / 512 );
+            return 0;
+        }
+
+        public long getSize() {
+            if ( export != null ) {
+                return export.length();
+            }
+            String url = this.url;
+            if ( url != null ) {
+                // the size is usually known already, it is requested when the file is looked up
+                return Math.max( 0, cache.stat( url ) );
+            }
+            ByteBuffer contents = this.contents;
+            FileBuffer writeBuffer = this.writeBuffer;
+            return writeBuffer != null ? writeBuffer.length() : contents.capacity();
+        }
+
+        private int read( Pointer buffer, long size, long offset ) {
+            if ( export != null ) {
+                return export.read( buffer, size, offset );
+            }
+            String url = this.url;
+            if ( url != null ) {
+                return cache.read( url, buffer, size, offset );
+            }
+            ByteBuffer view = contents.duplicate();
+            FileBuffer writeBuffer = this.writeBuffer;
+            if ( writeBuffer != null ) {
+                return writeBuffer.read( buffer, size, offset );
+            }
+            int bytesToRead = (int) Math.max( 0, Math.min( view.capacity() - offset, size ) );
+            if ( bytesToRead == 0 ) {
+                return 0;
+            }
+            byte[] bytesRead = new byte[bytesToRead];
+            view.position( (int) offset );
+            view.get( bytesRead, 0, bytesToRead );
+            buffer.put( 0, bytesRead, 0, bytesToRead );
+            return bytesToRead;
+        }
+
+        /**
+         * @return A stream over the contents of the file, read from its buffer, its scratch file or the blob cache
+         */
+        public InputStream getInputStream() {
+            String url = this.url;
+            ByteBuffer contents = this.contents;
+            FileBuffer writeBuffer = this.writeBuffer;
+            if ( writeBuffer != null ) {
+                return writeBuffer.newInputStream();
+            }
+            if ( url != null ) {
+                return cache.newInputStream( url );
+            }
+            return BlockInputStream.of( contents );
+        }
+
+        /**
+         * Copy the contents of the file to a writable buffer, before the file is modified.
+         * Multimedia files are loaded from the blob cache.
+         * The caller needs to hold the monitor of this file.
+         */
+        private void detach( boolean keepContents ) throws IOException {
+            if ( writeBuffer != null ) {
+                return;
+            }
+            FileBuffer target = new FileBuffer( scratch );
+            boolean complete = true;
+            if ( keepContents ) {
+                complete = url != null ? cache.load( url, target ) : target.append( contents );
+            }
+            if ( !complete ) {
+                target.release();
+                throw new IOException( "Could not copy the contents of " + name );
+            }
+            writeBuffer = target;
+            contents = ByteBuffer.allocate( 0 );
+            url = null;
+        }
+
+        private synchronized int truncate( long size ) {
+            touch();
+            try {
+                detach( size > 0 );
+                return writeBuffer.truncate( size ) ? 0 : -ErrorCodes.ENOSPC();
+            } catch ( IOException e ) {
+                log.error( "Could not truncate " + name, e );
+                return -ErrorCodes.EIO();
+            }
+        }
+
+        private synchronized int write( Pointer buffer, long bufSize, long writeOffset ) {
+            touch();
+            try {
+                detach( true );
+                return writeBuffer.write( buffer, bufSize, writeOffset ) ? (int) bufSize : -ErrorCodes.ENOSPC();
+            } catch ( IOException e ) {
+                log.error( "Could not write " + name, e );
+                return -ErrorCodes.EIO();
+            }
+        }
+
+        /**
+         * Register a write, so the row of the file is not unloaded before it was marked as changed
+         *
+         * @return false if the row was unloaded since the file was looked up, the file needs to be looked up again
+         */
+        private boolean beginWrite() {
+            ResultDirectory dir = parent;
+            if ( dir == null ) {
+                return true;
+            }
+            synchronized ( dir ) {
+                if ( dir.contents.get( name ) != this ) {
+                    return false;
+                }
+                writers++;
+                return true;
+            }
+        }
+
+        private void endWrite() {
+            ResultDirectory dir = parent;
+            if ( dir == null ) {
+                return;
+            }
+            synchronized ( dir ) {
+                writers--;
+            }
+        }
+
+        /**
+         * Refer to the same contents in a refreshed result
+         */
+        private synchronized void rebind( ByteBuffer data ) {
+            if ( writeBuffer == null && url == null ) {
+                contents = data;
+            }
+        }
+
+        /**
+         * Release the written contents of the file, when its namespace is released
+         */
+        private synchronized void release() {
+            if ( writeBuffer != null ) {
+                writeBuffer.release();
+                writeBuffer = null;
+            }
+        }
+
+        protected ResultFile setOperation( Operation operation ) {
+            log.debug( name + ": set op: " + operation );
+            this.lastOp = operation;
+            this.deleted = operation == Operation.UNLINK;
+            this.createdByFS = true;
+            if ( parent != null ) {
+                parent.fs.markDirty( this );
+            }
+            return this;
+        }
+    }
+
+
+    public static abstract class ResultPath {
+
+        @Getter
+        @Setter
+        protected String name;
+        @Getter
+        protected ResultDirectory parent;
+        /**
+         * Inode number, it stays the same as long as the path is mounted
+         */
+        @Getter
+        protected long inode;
+        /**
+         * Time of the last modification in milliseconds
+         */
+        protected volatile long modified = System.currentTimeMillis();
+
+        private ResultPath( String name, ResultDirectory parent, long inode ) {
+            this.name = name;
+            this.parent = parent;
+            this.inode = inode;
+        }
+
+        public String getPath() {
+            String path = name;
+            if ( parent != null ) {
+                path = parent.getPath() + "/" + path;
+                return path;
+            } else {
+                return "";
+            }
+        }
+
+        private synchronized void delete() {
+            if ( parent != null ) {
+                parent.deleteChild( this );
+                parent = null;
+            }
+        }
+
+        private synchronized void pseudoDelete() {
+            if ( this instanceof ResultFile ) {
+                ResultFile rf = (ResultFile) this;
+                rf.setOperation( Operation.UNLINK );
+            } else if ( parent != null ) {
+                parent.deleteChild( this );
+                parent = null;
+            }
+        }
+
+        protected abstract boolean isDeleted();
+
+        /**
+         * Fill in the attributes of the path, the size of a multimedia file is requested from the server if it is not known yet
+         *
+         * @return 0 or a negative error code if the attributes could not be determined
+         */
+        protected int getattr( FileStat stat, FuseContext context ) {
+            long seconds = modified / 1000;
+            long nanos = (modified % 1000) * 1_000_000;
+            stat.st_ino.set( inode );
+            stat.st_uid.set( context.uid.get() );
+            stat.st_gid.set( context.gid.get() );
+            stat.st_atim.tv_sec.set( seconds );
+            stat.st_atim.tv_nsec.set( nanos );
+            stat.st_mtim.tv_sec.set( seconds );
+            stat.st_mtim.tv_nsec.set( nanos );
+            stat.st_ctim.tv_sec.set( seconds );
+            stat.st_ctim.tv_nsec.set( nanos );
+            return 0;
+        }
+
+        protected void touch() {
+            modified = System.currentTimeMillis();
+        }
+
+        private void rename( String newName ) {
+            while ( newName.startsWith( "/" ) ) {
+                newName = newName.substring( 1 );
+            }
+            if ( this instanceof ResultFile ) {
+                ((ResultFile) this).setOperation( Operation.WRITE );
+                ((ResultFile) this).createdByFS = true;
+            }
+            name = newName;
+        }
+    }
+
+
+    /**
+     * A result that is mounted in a directory below the root, e.g. /q1 or /public.orders,
+     * or a view below the by or pk directory of a table, e.g. /orders/by/status=open, see {@link #resolve}.
+     * Each namespace keeps track of its own changes and is committed on its own.
+     */
+    public static class Namespace {
+
+        @Getter
+        private final String name;
+        @Getter
+        private final ResultDirectory directory;
+        @Getter
+        @Setter
+        private volatile Result result;
+        /**
+         * The websocket request the result was received for and its key in the result cache, to refresh the result
+         */
+        @Getter
+        @Setter
+        private volatile String request;
+        @Getter
+        @Setter
+        private volatile String cacheKey;
+        /**
+         * How the result is mapped to the directory of the namespace, it has to be set before the result is received
+         */
+        @Getter
+        @Setter
+        private volatile Layout layout = Layout.ROWS;
+        /**
+         * The table the result was selected from, if it is known. The rows of the table can be filtered
+         * in the by and pk directories of the namespace.
+         */
+        @Getter
+        @Setter
+        private volatile String table;
+        /**
+         * The names of the primary key columns of {@link #table} from its metadata, if the rows are queried by a query
+         * whose header does not mark them, see {@link Result#setPrimaryKey}
+         */
+        @Getter
+        @Setter
+        private volatile String[] primaryKey;
+        /**
+         * If the namespace holds the rows of a table that match a path, e.g. /orders/by/status=open
+         */
+        @Getter
+        private final boolean view;
+        /**
+         * Released once the result was mounted or the namespace was unmounted
+         */
+        private final CountDownLatch received = new CountDownLatch( 1 );
+        /**
+         * Changed files of row and column directories, keyed by the row in the upper and the column in the lower 32 bits.
+         * An update request is built from these files, without scanning the tree.
+         */
+        private final ConcurrentHashMap<Long, ResultFile> dirty = new ConcurrentHashMap<>();
+        /**
+         * The result a refresh is applying, see {@link ResultFS#refresh}. While it is set, rows move to their positions
+         * in it, so files that are changed or committed meanwhile are only applied to {@link #dirty} once the refresh
+         * switched to it. Guarded by the monitor of the namespace, as the files below.
+         */
+        private Result refreshing;
+        private final List<ResultFile> changedDuringRefresh = new ArrayList<>();
+        private final Map<ResultFile, Integer> committedDuringRefresh = new HashMap<>();
+        /**
+         * Set on every access, used to determine which namespaces are released first
+         */
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        /**
+         * @param name The path of the directory of the namespace, relative to the root
+         */
+        private Namespace( String name, ResultDirectory parent ) {
+            this.name = name;
+            this.directory = new ResultDirectory( name.substring( name.lastIndexOf( '/' ) + 1 ), parent, this );
+            this.view = parent.filter != null;
+        }
+
+        /**
+         * Wait until the result was mounted, at most for the configured time
+         */
+        private void awaitResult() {
+            try {
+                received.await( QTFConfig.getViewTimeoutSeconds(), TimeUnit.SECONDS );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * @return The number of bytes of the result of this namespace
+         */
+        public long getByteSize() {
+            Result result = this.result;
+            return result == null ? 0 : result.getByteSize();
+        }
+
+        /**
+         * @return The number of changed cells that have not been committed yet
+         */
+        public int getPendingChanges() {
+            return dirty.size();
+        }
+
+        /**
+         * Record that a file was changed. If the file belongs to a column of a row, it is considered by the next commit.
+         */
+        private synchronized void markDirty( ResultFile file ) {
+            file.changes.incrementAndGet();
+            if ( refreshing != null ) {
+                // the positions of the rows are changing
+                changedDuringRefresh.add( file );
+                return;
+            }
+            track( file );
+        }
+
+        private void track( ResultFile file ) {
+            long cell = cellOf( file );
+            if ( cell < 0 ) {
+                return;
+            }
+            // a deleted file does not replace a file that was created for the same column, e.g. img.png and img.jpg
+            dirty.merge( cell, file,
+                    ( existing, changed ) -> changed.deleted && existing != changed && !existing.deleted ? existing : changed );
+        }
+
+        /**
+         * @return The row in the upper and the column in the lower 32 bits of the cell a file stands for,
+         * or -1 if it is not a file of a row or column directory of the current result
+         */
+        private long cellOf( ResultFile file ) {
+            ResultDirectory dir = file.parent;
+            if ( dir == null || dir.result != this.result ) {
+                return -1;
+            }
+            return positionOf( file, dir );
+        }
+
+        /**
+         * @return The cell a file stands for in the result of its directory, which might not be the current result
+         * during a refresh, see {@link #cellOf}
+         */
+        private static long positionOf( ResultFile file, ResultDirectory dir ) {
+            Result result = dir.result;
+            if ( result == null ) {
+                return -1;
+            }
+            int row = dir.column >= 0 ? rowOf( file.name, result ) : dir.ithRow;
+            int column = dir.column >= 0 ? dir.column : result.getColumnIndex( file.name );
+            if ( row < 0 || column < 0 ) {
+                return -1;
+            }
+            return ((long) row << 32) | column;
+        }
+
+        /**
+         * Called by a refresh before it moves the rows to their positions in a fresh result
+         */
+        private synchronized void startRefresh( Result fresh ) {
+            refreshing = fresh;
+        }
+
+        /**
+         * Switch to the fresh result of a refresh once its rows were moved to their positions in it.
+         * The changes are keyed by the positions of their rows again, including those that were changed meanwhile.
+         *
+         * @return The number of changes that were discarded, because their rows were deleted
+         */
+        private synchronized int finishRefresh( Result fresh ) {
+            Set<ResultFile> changed = new LinkedHashSet<>( dirty.values() );
+            changed.addAll( changedDuringRefresh );
+            changedDuringRefresh.clear();
+            dirty.clear();
+            result = fresh;
+            refreshing = null;
+            int discarded = 0;
+            for ( ResultFile file : changed ) {
+                if ( file.parent == null || file.parent.result != fresh ) {
+                    discarded++;
+                } else {
+                    track( file );
+                }
+            }
+            committedDuringRefresh.forEach( this::removeCommitted );
+            committedDuringRefresh.clear();
+            return discarded;
+        }
+
+        /**
+         * Remove a committed file from the pending changes, unless it was changed again since it was committed
+         */
+        private void removeCommitted( ResultFile file, int changes ) {
+            if ( file.changes.get() != changes ) {
+                return;
+            }
+            long cell = cellOf( file );
+            if ( cell >= 0 ) {
+                dirty.remove( cell, file );
+            }
+        }
+
+        /**
+         * Determine the changes in this namespace and create corresponding SQL statements
+         *
+         * @return BatchUpdateRequest
+         */
+        public BatchUpdateRequest getBatchUpdateRequest() {
+            Result result = this.result;
+            if ( result == null || result.table == null ) {
+                return null;
+            }
+            BatchUpdateRequest updateRequest = new BatchUpdateRequest( result );
+            Update update = null;
+            for ( long key : dirty.keySet().stream().sorted().toArray( Long[]::new ) ) {
+                ResultFile rf = dirty.get( key );
+                ResultDirectory dir = rf == null ? null : rf.parent;
+                int ithRow = (int) (key >>> 32);
+                // the file might have been moved to another cell or its row might have been deleted since it was changed
+                if ( dir == null || dir.parent == null || cellOf( rf ) != key ) {
+                    continue;
+                }
+                if ( update == null || update.getIthRow() != ithRow ) {
+                    update = updateRequest.new Update( ithRow );
+                    updateRequest.addUpdate( update );
+                }
+                update.addValue( result.header[(int) key].name, rf );
+                update.getFiles().put( rf, rf.changes.get() );
+            }
+            return updateRequest;
+        }
+
+        /**
+         * Remove the changes of a request or of a batch of it that was committed from the pending changes
+         * and write the committed values into the result, so it does not need to be fetched again.
+         * Files that were changed again since the request was built stay pending.
+         */
+        public void committed( BatchUpdateRequest request ) {
+            boolean patched = false;
+            Set<ResultDirectory> rows = new HashSet<>();
+            for ( Update update : request.getUpdates() ) {
+                for ( Map.Entry<ResultFile, Integer> entry : update.getFiles().entrySet() ) {
+                    ResultFile file = entry.getKey();
+                    if ( file.changes.get() != entry.getValue() ) {
+                        continue;
+                    }
+                    synchronized ( this ) {
+                        if ( refreshing != null ) {
+                            committedDuringRefresh.put( file, entry.getValue() );
+                        } else {
+                            removeCommitted( file, entry.getValue() );
+                        }
+                    }
+                    // during a refresh, the row of the file might already belong to the fresh result
+                    ResultDirectory dir = file.parent;
+                    long cell = dir == null ? -1 : positionOf( file, dir );
+                    if ( cell >= 0 ) {
+                        if ( !patch( file, dir.result, (int) (cell >>> 32), (int) cell ) ) {
+                            // the file keeps its contents, since its row cannot be built from the result again
+                            continue;
+                        }
+                        patched = true;
+                    }
+                    // the row can be unloaded again
+                    file.createdByFS = false;
+                    if ( dir != null ) {
+                        rows.add( dir );
+                    }
+                }
+            }
+            for ( ResultDirectory row : rows ) {
+                row.fs.unpin( row );
+            }
+            if ( patched ) {
+                // the files of the whole result were measured before its values changed
+                addExports( this );
+            }
+        }
+
+        /**
+         * Write the committed value of a file into the result
+         *
+         * @return false if the value is not known, i.e. the url of a multimedia file that was written
+         */
+        private static boolean patch( ResultFile file, Result result, int row, int column ) {
+            if ( file.getLastOp() == Operation.UNLINK ) {
+                result.setValue( row, column, null );
+                return true;
+            }
+            if ( result.isMultimedia( column ) ) {
+                return false;
+            }
+            try ( InputStream in = file.getInputStream() ) {
+                result.setValue( row, column, new String( in.readAllBytes(), StandardCharsets.UTF_8 ) );
+                return true;
+            } catch ( IOException e ) {
+                log.warn( "Could not read the committed value of " + file.getPath(), e );
+                return false;
+            }
+        }
+    }
+
+
+    @Getter
+    private final ResultDirectory rootDirectory;
+    /**
+     * The namespaces that are mounted below the root, by their name
+     */
+    private final ConcurrentHashMap<String, Namespace> namespaces = new ConcurrentHashMap<>();
+    /**
+     * Row directories whose files are currently loaded, in the order they were loaded
+     */
+    private final ArrayDeque<ResultDirectory> loadedRows = new ArrayDeque<>();
+    /**
+     * Maps the paths of all files and directories in the tree to their node, so lookups do not need to walk the tree.
+     * Files of row directories that are not loaded are not contained.
+     */
+    private final ConcurrentHashMap<String, ResultPath> index = new ConcurrentHashMap<>();
+    private final BlobCache blobCache = new BlobCache();
+    private final ScratchSpace scratch = new ScratchSpace();
+    private final Prefetcher prefetcher = new Prefetcher( blobCache );
+    /**
+     * Results that were unmounted or replaced by a refresh. The multimedia files they refer to are removed from the
+     * blob cache once the next result was mounted or unmounted, unless a mounted result refers to them as well.
+     */
+    private final ConcurrentLinkedQueue<Result> released = new ConcurrentLinkedQueue<>();
+    @Setter
+    private volatile ViewHandler viewHandler;
+
+    /**
+     * Next free inode number, the inode of the root directory is 1
+     */
+    private final AtomicLong inodes = new AtomicLong( ROOT_INODE + 1 );
+
+    public ResultFS() {
+        this.rootDirectory = new ResultDirectory( "root", this );
+        this.index.put( "/", rootDirectory );
+    }
+
+    /**
+     * Create a namespace below the root, for a result that is about to be received.
+     * A namespace with the same name is replaced, including its changes.
+     */
+    public Namespace addNamespace( String name ) {
+        if ( name.isEmpty() || name.contains( "/" ) || name.equals( "." ) || name.equals( ".." ) ) {
+            throw new IllegalArgumentException( "Invalid name for a namespace: " + name );
+        }
+        return addNamespace( name, rootDirectory );
+    }
+
+    private Namespace addNamespace( String name, ResultDirectory parent ) {
+        Namespace namespace = new Namespace( name, parent );
+        parent.add( namespace.directory );
+        Namespace replaced = namespaces.put( name, namespace );
+        if ( replaced != null ) {
+            if ( replaced.getPendingChanges() > 0 ) {
+                log.warn( "The changes in /" + name + " were discarded, because the namespace was replaced." );
+            }
+            release( replaced );
+        }
+        return namespace;
+    }
+
+    /**
+     * @return false if the namespace was unmounted or replaced by another namespace with the same name
+     */
+    public boolean isMounted( Namespace namespace ) {
+        return namespaces.get( namespace.name ) == namespace;
+    }
+
+    public Namespace getNamespace( String name ) {
+        return namespaces.get( name );
+    }
+
+    public Collection<Namespace> getNamespaces() {
+        return Collections.unmodifiableCollection( namespaces.values() );
+    }
+
+    /**
+     * Add the directory of a row to a namespace, while its result is received.
+     * Namespaces with the column layout get their directories once the whole result was received, see {@link #mounted}
+     */
+    public void addRow( Namespace namespace, Result result, int ithRow ) {
+        if ( namespace.layout == Layout.COLUMNS || !isMounted( namespace ) ) {
+            return;
+        }
+        ResultDirectory bucket = getBucket( namespace.directory, bucketKey( result, ithRow, ithRow ) );
+        ResultDirectory dir = new ResultDirectory( bucket, result, ithRow );
+        if ( !QTFConfig.isLazyRows() ) {
+            dir.load();
+        }
+        bucket.add( dir );
+    }
+
+    /**
+     * @param name The number the directory of the row is named after
+     * @return The number that determines the bucket of a row: its primary key, if rows are grouped by a primary key
+     * that is a single integer column, otherwise the number it is named after
+     */
+    private static long bucketKey( Result result, int row, long name ) {
+        if ( QTFConfig.isBucketByPrimaryKey() ) {
+            int[] primaryKeys = result.getPrimaryKeys();
+            if ( primaryKeys.length == 1 && !result.isNull( row, primaryKeys[0] ) ) {
+                try {
+                    long key = Long.parseLong( result.getValue( row, primaryKeys[0] ) );
+                    if ( key >= 0 ) {
+                        return key;
+                    }
+                } catch ( NumberFormatException e ) {
+                    // e.g. a string key, the row is grouped by its name
+                }
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Rows can be grouped into nested buckets, so no directory holds more than the configured fan-out of entries,
+     * e.g. /q1/000/123/123456 for row 123456 with a fan-out of 1000 and two levels. The outermost level is not bounded,
+     * it only holds more than fan-out buckets once there are more than fan-out^(levels + 1) rows.
+     *
+     * @return The innermost bucket of a row, or the directory of the namespace if rows are not grouped
+     */
+    private static ResultDirectory getBucket( ResultDirectory directory, long key ) {
+        final int fanOut = QTFConfig.getBucketFanOut();
+        if ( fanOut <= 1 ) {
+            return directory;
+        }
+        final int levels = QTFConfig.getBucketLevels();
+        // bucket names have the same width, so they are sorted by their number
+        final int width = String.valueOf( fanOut - 1 ).length();
+        ResultDirectory bucket = directory;
+        for ( int level = levels; level > 0; level-- ) {
+            long index = key;
+            for ( int i = 0; i < level; i++ ) {
+                index /= fanOut;
+            }
+            if ( level < levels ) {
+                index %= fanOut;
+            }
+            StringBuilder name = new StringBuilder( Long.toString( index ) );
+            while ( name.length() < width ) {
+                name.insert( 0, '0' );
+            }
+            bucket = bucket.getBucket( name.toString() );
+        }
+        return bucket;
+    }
+
+    /**
+     * Mount a result that was received before, e.g. a result from the result cache
+     */
+    public void mountResult( Namespace namespace, Result result ) {
+        namespace.result = result;
+        for ( int i = 0; i < result.getRowCount(); i++ ) {
+            addRow( namespace, result, i );
+        }
+        mounted( namespace );
+    }
+
+    /**
+     * Apply a refreshed result of the same request to a namespace. Rows are matched by their primary key,
+     * so only the directories of inserted and deleted rows and the files of changed cells are replaced.
+     * Matched rows keep their directory, even if their position in the result changed.
+     * If the result has no primary key, its columns changed or it is mapped by column, it is mounted again instead,
+     * as well as if a primary key is null or not unique, since rows could not be matched.
+     * Changes that are made during a refresh are applied once the namespace switched to the fresh result.
+     */
+    public void refresh( Namespace namespace, Result fresh ) {
+        if ( !isMounted( namespace ) ) {
+            // unmounted in the meantime
+            return;
+        }
+        Result old = namespace.result;
+        int[] primaryKeys = fresh.getPrimaryKeys();
+        if ( old == null || primaryKeys.length == 0 || !sameColumns( old, fresh ) || namespace.layout == Layout.COLUMNS ) {
+            remount( namespace, fresh );
+            return;
+        }
+
+        ResultDirectory dir = namespace.directory;
+        int matched = 0;
+        int inserted = 0;
+        int deleted = 0;
+        boolean matchable;
+        synchronized ( dir ) {
+            HashMap<String, ResultDirectory> rows = new HashMap<>();
+            String[] freshKeys = primaryKeys( fresh, primaryKeys );
+            matchable = freshKeys != null && collectRows( dir, primaryKeys, rows );
+            if ( matchable ) {
+                namespace.startRefresh( fresh );
+                List<Integer> insertedRows = new ArrayList<>();
+                for ( int i = 0; i < fresh.getRowCount(); i++ ) {
+                    ResultDirectory row = rows.remove( freshKeys[i] );
+                    if ( row != null ) {
+                        row.rebind( fresh, i );
+                        matched++;
+                    } else {
+                        insertedRows.add( i );
+                    }
+                }
+                for ( ResultDirectory row : rows.values() ) {
+                    releaseBuffers( row );
+                    ((ResultPath) row).delete();
+                    deleted++;
+                }
+                // new rows are named by their position, unless the name is taken by a row that moved
+                int next = fresh.getRowCount();
+                for ( int i : insertedRows ) {
+                    long name = i;
+                    ResultDirectory bucket = getBucket( dir, bucketKey( fresh, i, name ) );
+                    while ( bucket.contents.containsKey( String.valueOf( name ) ) ) {
+                        name = next++;
+                        bucket = getBucket( dir, bucketKey( fresh, i, name ) );
+                    }
+                    ResultDirectory row = new ResultDirectory( String.valueOf( name ), bucket, fresh, i );
+                    if ( !QTFConfig.isLazyRows() ) {
+                        row.load();
+                    }
+                    bucket.add( row );
+                    inserted++;
+                }
+                if ( deleted > 0 ) {
+                    removeEmptyBuckets( dir );
+                }
+            }
+        }
+        if ( !matchable ) {
+            log.debug( "The rows of /" + namespace.name + " cannot be matched, since a primary key is null or not unique." );
+            remount( namespace, fresh );
+            return;
+        }
+        if ( deleted > 0 ) {
+            synchronized ( loadedRows ) {
+                loadedRows.removeIf( row -> row.namespace == namespace && row.parent == null );
             }
         }
 
-        public synchronized void read( Pointer buf, FuseFillDir filler ) {
-            for ( ResultPath p : contents.values() ) {
-                if ( p.isDeleted() ) {
-                    continue;
-                }
-                filler.apply( buf, p.name, null, 0 );
-            }
+        prefetcher.stop( old );
+        released.add( old );
+        int discarded = namespace.finishRefresh( fresh );
+        if ( discarded > 0 ) {
+            log.warn( String.format( "%d changes in /%s were discarded, because their rows were deleted.", discarded, namespace.name ) );
         }
+        log.debug( String.format( "Refreshed /%s: %d rows kept, %d inserted, %d deleted", namespace.name, matched, inserted, deleted ) );
+        mounted( namespace );
+    }
 
-        protected void getUpdate( BatchUpdateRequest updateRequest ) {
-            Update update = updateRequest.new Update( ithRow );
-            boolean add = false;
-            for ( ResultPath rp : contents.values() ) {
-                if ( rp instanceof ResultFile && result.containsColumn( rp.getName() ) ) {
-                    ResultFile rf = (ResultFile) rp;
-                    if ( rf.createdByFS ) {
-                        update.addValue( rf );
-                        add = true;
-                    }
-                }
+    /**
+     * Mount a refreshed result in a namespace that replaces the namespace, including its changes
+     */
+    private void remount( Namespace namespace, Result fresh ) {
+        Namespace replacement = addNamespace( namespace.name, namespace.directory.parent );
+        replacement.request = namespace.request;
+        replacement.cacheKey = namespace.cacheKey;
+        replacement.layout = namespace.layout;
+        replacement.table = namespace.table;
+        replacement.primaryKey = namespace.primaryKey;
+        mountResult( replacement, fresh );
+    }
+
+    /**
+     * Collect the row directories of a namespace, including the rows in buckets, by their primary key
+     *
+     * @return false if a primary key is null or not unique
+     */
+    private static boolean collectRows( ResultDirectory dir, int[] primaryKeys, Map<String, ResultDirectory> rows ) {
+        for ( ResultPath p : dir.contents.values() ) {
+            if ( !(p instanceof ResultDirectory) ) {
+                continue;
             }
-            if ( add ) {
-                updateRequest.addUpdate( update );
+            ResultDirectory child = (ResultDirectory) p;
+            if ( child.result != null ) {
+                String key = primaryKey( child.result, child.ithRow, primaryKeys );
+                if ( key == null || rows.put( key, child ) != null ) {
+                    return false;
+                }
+            } else if ( child.bucket && !collectRows( child, primaryKeys, rows ) ) {
+                return false;
             }
         }
+        return true;
     }
 
-
-    public static class ResultFile extends ResultPath {
-
-        private ByteBuffer contents = ByteBuffer.allocate( 0 );
-        @Getter
-        private String dataAsString;
-        private String url;
-        boolean createdByFS;
-        @Getter
-        private Operation lastOp = Operation.CREATE;
-        @Getter
-        private boolean deleted = false;
-
-        /**
-         * This constructor is called by mkfile
-         * (when a file is created by the FS)
-         */
-        private ResultFile( String name, ResultDirectory parent, boolean createdByFS ) {
-            super( name, parent );
-            this.createdByFS = createdByFS;
+    /**
+     * @return The primary keys of all rows of a result or null if one of them is null or not unique
+     */
+    private static String[] primaryKeys( Result result, int[] primaryKeys ) {
+        String[] keys = new String[result.getRowCount()];
+        Set<String> unique = new HashSet<>();
+        for ( int i = 0; i < keys.length; i++ ) {
+            keys[i] = primaryKey( result, i, primaryKeys );
+            if ( keys[i] == null || !unique.add( keys[i] ) ) {
+                return null;
+            }
         }
+        return keys;
+    }
 
-        public static ResultFile ofData( String name, Object data, ResultDirectory parent ) {
-            ResultFile file = new ResultFile( name + ".txt", parent, false );
-            if ( data instanceof String ) {
-                file.dataAsString = (String) data;
-                file.contents = ByteBuffer.wrap( ((String) data).getBytes( StandardCharsets.UTF_8 ) );
-            } else if ( data instanceof byte[] ) {
-                file.contents = ByteBuffer.wrap( (byte[]) data );
-            } else {
-                String s = gson.toJson( data.toString() );
-                file.dataAsString = s;
-                file.contents = ByteBuffer.wrap( s.getBytes( StandardCharsets.UTF_8 ) );
+    /**
+     * Remove the buckets of a directory that no longer contain rows, e.g. because their rows were deleted by a refresh
+     */
+    private static void removeEmptyBuckets( ResultDirectory dir ) {
+        for ( ResultPath p : new ArrayList<>( dir.contents.values() ) ) {
+            if ( !(p instanceof ResultDirectory) || !((ResultDirectory) p).bucket ) {
+                continue;
+            }
+            ResultDirectory bucket = (ResultDirectory) p;
+            removeEmptyBuckets( bucket );
+            if ( bucket.contents.isEmpty() ) {
+                ((ResultPath) bucket).delete();
             }
-            return file;
         }
+    }
 
-        public static ResultFile ofUrl( String name, String url, ResultDirectory parent ) {
-            String extension = "";
-            if ( url.contains( "." ) ) {
-                extension = url.substring( url.lastIndexOf( "." ) );
+    private static boolean sameColumns( Result a, Result b ) {
+        if ( a.header.length != b.header.length ) {
+            return false;
+        }
+        for ( int i = 0; i < a.header.length; i++ ) {
+            DbColumn x = a.header[i];
+            DbColumn y = b.header[i];
+            if ( !x.name.equals( y.name ) || !Objects.equals( x.dataType, y.dataType ) || x.primary != y.primary ) {
+                return false;
             }
-            ResultFile file = new ResultFile( name + extension, parent, false );
-            file.url = url;
-            //put something into contents, else the file read method will not be called
-            file.contents = ByteBuffer.wrap( "loading".getBytes( StandardCharsets.UTF_8 ) );
-            return file;
         }
+        return true;
+    }
 
-        @Override
-        protected void getattr( FileStat stat, FuseContext context ) {
-            stat.st_mode.set( FileStat.S_IFREG | 0777 );
-            stat.st_size.set( contents.capacity() );
-            stat.st_uid.set( context.uid.get() );
-            stat.st_gid.set( context.gid.get() );
+    /**
+     * @return The primary key of a row or null if one of its values is null
+     */
+    private static String primaryKey( Result result, int row, int[] primaryKeys ) {
+        StringBuilder key = new StringBuilder();
+        for ( int pk : primaryKeys ) {
+            String value = result.getValue( row, pk );
+            if ( value == null ) {
+                return null;
+            }
+            // the length separates the values
+            key.append( value.length() ).append( ':' ).append( value );
         }
+        return key.toString();
+    }
 
-        private int read( Pointer buffer, long size, long offset ) {
-            if ( url != null ) {
-                HttpResponse<byte[]> restResponse = restRequest( url );
-                if ( restResponse.isSuccess() ) {
-                    contents = ByteBuffer.wrap( restResponse.getBody() );
-                } else {
-                    contents = ByteBuffer.allocate( 0 );
-                    return 0;
+    /**
+     * Called once the result of a namespace was received. The files that hold the whole result, e.g. result.csv,
+     * are added now and, with the column layout, the column directories.
+     * The sizes of its multimedia files are determined in the background and the files themselves are fetched,
+     * if prefetching is enabled.
+     * If the mounted results exceed the memory budget, the least recently used namespaces without changes are released.
+     */
+    public void mounted( Namespace namespace ) {
+        if ( !isMounted( namespace ) ) {
+            // unmounted while the result was received, its files are not added and it is not prefetched
+            return;
+        }
+        if ( namespace.layout == Layout.COLUMNS ) {
+            Result result = namespace.result;
+            for ( int h = 0; h < result.header.length; h++ ) {
+                ResultDirectory dir = ResultDirectory.ofColumn( namespace.directory, result, h );
+                if ( !QTFConfig.isLazyRows() ) {
+                    dir.load();
                 }
+                namespace.directory.add( dir );
             }
-            int bytesToRead = (int) Math.min( contents.capacity() - offset, size );
-            byte[] bytesRead = new byte[bytesToRead];
-            synchronized ( this ) {
-                contents.position( (int) offset );
-                contents.get( bytesRead, 0, bytesToRead );
-                buffer.put( 0, bytesRead, 0, bytesToRead );
-                contents.position( 0 ); // Rewind
+        }
+        addExports( namespace );
+        if ( namespace.table != null && !namespace.view ) {
+            for ( Filter filter : Filter.values() ) {
+                addFilter( namespace.directory, filter );
+            }
+        }
+        namespace.lastAccess = System.currentTimeMillis();
+        namespace.received.countDown();
+        prefetcher.start( namespace.result );
+        releaseBlobs();
+
+        final long budget = QTFConfig.getMountBudgetMB() * 1024L * 1024L;
+        long used = 0;
+        for ( Namespace ns : namespaces.values() ) {
+            used += ns.getByteSize();
+        }
+        if ( used <= budget ) {
+            return;
+        }
+        List<Namespace> leastRecentlyUsed = new ArrayList<>( namespaces.values() );
+        leastRecentlyUsed.sort( Comparator.comparingLong( ns -> ns.lastAccess ) );
+        for ( Namespace ns : leastRecentlyUsed ) {
+            if ( used <= budget ) {
+                break;
+            }
+            if ( ns == namespace || ns.getPendingChanges() > 0 ) {
+                continue;
+            }
+            long bytes = ns.getByteSize();
+            if ( unmount( ns ) ) {
+                log.info( "Released /" + ns.name + " to stay within the memory budget." );
+                used -= bytes;
             }
-            return bytesToRead;
         }
+    }
 
-        private HttpResponse<byte[]> restRequest( final String fileUrl ) {
-            return Unirest.get( QTFConfig.getFileUrl( fileUrl ) ).asBytes();
+    /**
+     * Add the files that hold the whole result of a namespace, e.g. result.csv.
+     * They replace the files of the previous result after a refresh or a commit.
+     */
+    private static void addExports( Namespace namespace ) {
+        if ( !QTFConfig.isExportFiles() ) {
+            return;
         }
+        Result result = namespace.result;
+        namespace.directory.add( ResultFile.ofExport( "result.csv", ResultExport.csv( result ), namespace.directory ) );
+        namespace.directory.add( ResultFile.ofExport( "result.jsonl", ResultExport.jsonLines( result ), namespace.directory ) );
+        namespace.directory.add( ResultFile.ofExport( "result.arrow", ResultExport.arrow( result ), namespace.directory ) );
+    }
 
-        private synchronized void truncate( long size ) {
-            if ( size < contents.capacity() ) {
-                // Need to create a new, smaller buffer
-                ByteBuffer newContents = ByteBuffer.allocate( (int) size );
-                byte[] bytesRead = new byte[(int) size];
-                contents.get( bytesRead );
-                newContents.put( bytesRead );
-                contents = newContents;
+    /**
+     * Add the by or pk directory to the directory of a namespace, unless it contains it already, e.g. after a refresh
+     */
+    private static void addFilter( ResultDirectory directory, Filter filter ) {
+        synchronized ( directory ) {
+            if ( directory.contents.containsKey( filter.getDirectoryName() ) ) {
+                return;
             }
+            ResultDirectory dir = new ResultDirectory( filter.getDirectoryName(), directory );
+            dir.filter = filter;
+            directory.add( dir );
         }
+    }
 
-        private int write( Pointer buffer, long bufSize, long writeOffset ) {
-            int maxWriteIndex = (int) (writeOffset + bufSize);
-            byte[] bytesToWrite = new byte[(int) bufSize];
-            synchronized ( this ) {
-                if ( maxWriteIndex > contents.capacity() ) {
-                    // Need to create a new, larger buffer
-                    ByteBuffer newContents = ByteBuffer.allocate( maxWriteIndex );
-                    newContents.put( contents );
-                    contents = newContents;
-                }
-                buffer.get( 0, bytesToWrite, 0, (int) bufSize );
-                contents.position( (int) writeOffset );
-                contents.put( bytesToWrite );
-                contents.position( 0 ); // Rewind
+    /**
+     * Mount the rows of a table that match the name of a subdirectory of a by or pk directory in a namespace of their own,
+     * a view, e.g. /orders/by/status=open. Only the matching rows are queried and they are mounted while they are received,
+     * like the result of any other query. The view can be refreshed and committed on its own and is unmounted
+     * with the namespace of its table.
+     *
+     * @return The directory of the view or null if the name is not a predicate on the columns of the table
+     */
+    private ResultPath resolve( ResultDirectory dir, String name ) {
+        Namespace namespace = dir.namespace;
+        Result result = namespace.result;
+        ViewHandler handler = viewHandler;
+        // e.g. .DS_Store, which would otherwise be queried as a primary key
+        if ( handler == null || result == null || name.isEmpty() || name.startsWith( "." ) ) {
+            return null;
+        }
+        DbColumn[] columns;
+        String[] values;
+        if ( dir.filter == Filter.BY ) {
+            int equals = name.indexOf( '=' );
+            int column = equals < 0 ? -1 : columnOf( result, name.substring( 0, equals ) );
+            if ( column < 0 ) {
+                return null;
+            }
+            columns = new DbColumn[]{ result.header[column] };
+            values = new String[]{ name.substring( equals + 1 ) };
+        } else {
+            int[] primaryKeys = result.getPrimaryKeys();
+            values = name.split( ",", -1 );
+            if ( primaryKeys.length == 0 || values.length != primaryKeys.length ) {
+                return null;
+            }
+            columns = new DbColumn[primaryKeys.length];
+            for ( int k = 0; k < primaryKeys.length; k++ ) {
+                columns[k] = result.header[primaryKeys[k]];
             }
-            return (int) bufSize;
         }
-
-        protected ResultFile setOperation( Operation operation ) {
-            log.debug( name + ": set op: " + operation );
-            this.lastOp = operation;
-            this.deleted = operation == Operation.UNLINK;
-            this.createdByFS = true;
-            this.url = null;
-            return this;
+        String query = QueryRequest.select( namespace.table, columns, values );
+        if ( query == null ) {
+            return null;
+        }
+        Namespace view;
+        synchronized ( dir ) {
+            // resolved by a concurrent lookup
+            ResultPath existing = dir.contents.get( name );
+            if ( existing != null ) {
+                return existing;
+            }
+            view = addNamespace( namespace.name + "/" + dir.name + "/" + name, dir );
+            view.table = namespace.table;
+            view.primaryKey = namespace.primaryKey;
+            view.layout = namespace.layout;
+        }
+        try {
+            handler.submit( view, query );
+        } catch ( RuntimeException e ) {
+            log.error( "Could not query the rows of /" + view.name, e );
+            unmount( view );
+            return null;
         }
+        return view.directory;
     }
 
+    /**
+     * @return The index of the column with the given name or -1
+     */
+    private static int columnOf( Result result, String name ) {
+        for ( int h = 0; h < result.header.length; h++ ) {
+            if ( result.header[h].name.equals( name ) ) {
+                return h;
+            }
+        }
+        return -1;
+    }
 
-    public static abstract class ResultPath {
-
-        @Getter
-        @Setter
-        protected String name;
-        @Getter
-        protected ResultDirectory parent;
+    /**
+     * Remove a namespace and release its result and the files that were written in it
+     *
+     * @return false if no such namespace is mounted
+     */
+    public boolean unmount( String name ) {
+        Namespace namespace = namespaces.get( name );
+        return namespace != null && unmount( namespace );
+    }
 
-        private ResultPath( String name ) {
-            this( name, null );
+    public boolean unmount( Namespace namespace ) {
+        if ( !namespaces.remove( namespace.name, namespace ) ) {
+            return false;
         }
-
-        private ResultPath( String name, ResultDirectory parent ) {
-            this.name = name;
-            this.parent = parent;
+        ResultDirectory parent = namespace.directory.parent;
+        synchronized ( parent ) {
+            // the directory might have been replaced by a newer namespace with the same name
+            if ( parent.contents.get( namespace.directory.name ) == namespace.directory ) {
+                parent.deleteChild( namespace.directory );
+            }
         }
+        release( namespace );
+        releaseBlobs();
+        return true;
+    }
 
-        public String getPath() {
-            String path = name;
-            if ( parent != null ) {
-                path = parent.getPath() + "/" + path;
-                return path;
-            } else {
-                return "";
+    private void release( Namespace namespace ) {
+        synchronized ( loadedRows ) {
+            loadedRows.removeIf( row -> row.namespace == namespace );
+        }
+        if ( namespace.result != null ) {
+            prefetcher.stop( namespace.result );
+            released.add( namespace.result );
+        }
+        releaseBuffers( namespace.directory );
+        // rows that are still received are not indexed below the path of the namespace
+        namespace.directory.parent = null;
+        namespace.dirty.clear();
+        namespace.received.countDown();
+        // the views of a table are part of its directory
+        String prefix = namespace.name + "/";
+        for ( Namespace view : namespaces.values() ) {
+            if ( view.name.startsWith( prefix ) ) {
+                unmount( view );
             }
         }
+    }
 
-        private synchronized void delete() {
-            if ( parent != null ) {
-                parent.deleteChild( this );
-                parent = null;
+    /**
+     * Remove the multimedia files of released results from the blob cache, unless a mounted result refers to them
+     */
+    private void releaseBlobs() {
+        Set<String> urls = new HashSet<>();
+        for ( Result result = released.poll(); result != null; result = released.poll() ) {
+            forEachUrl( result, urls::add );
+        }
+        if ( urls.isEmpty() ) {
+            return;
+        }
+        for ( Namespace namespace : namespaces.values() ) {
+            Result result = namespace.result;
+            // a result that is still received is not read while its rows are added
+            if ( result != null && namespace.received.getCount() == 0 ) {
+                forEachUrl( result, urls::remove );
             }
         }
+        blobCache.remove( urls );
+    }
 
-        private synchronized void pseudoDelete() {
-            if ( this instanceof ResultFile ) {
-                ResultFile rf = (ResultFile) this;
-                rf.setOperation( Operation.UNLINK );
-            } else if ( parent != null ) {
-                parent.deleteChild( this );
-                parent = null;
+    private static void forEachUrl( Result result, Consumer<String> action ) {
+        for ( int column = 0; column < result.header.length; column++ ) {
+            if ( !result.isMultimedia( column ) ) {
+                continue;
+            }
+            for ( int row = 0; row < result.getRowCount(); row++ ) {
+                if ( result.isNull( row, column ) ) {
+                    continue;
+                }
+                action.accept( result.getValue( row, column ) );
             }
         }
+    }
 
-        protected ResultPath find( String path ) {
-            while ( path.startsWith( "/" ) ) {
-                path = path.substring( 1 );
-            }
-            if ( path.equals( name ) || path.isEmpty() ) {
-                return this;
+    private static void releaseBuffers( ResultDirectory dir ) {
+        synchronized ( dir ) {
+            for ( ResultPath p : dir.contents.values() ) {
+                if ( p instanceof ResultDirectory ) {
+                    releaseBuffers( (ResultDirectory) p );
+                } else {
+                    ((ResultFile) p).release();
+                }
             }
-            return null;
         }
+    }
 
-        protected abstract boolean isDeleted();
+    /**
+     * @return The result of the namespace a directory belongs to, or null
+     */
+    private static Result getResult( ResultDirectory dir ) {
+        return dir == null || dir.namespace == null ? null : dir.namespace.result;
+    }
 
-        protected abstract void getattr( FileStat stat, FuseContext context );
+    /**
+     * @return If a file with this name in a directory stands for a cell of the result,
+     * i.e. it is named after a column or, in a column directory, after a row
+     */
+    private static boolean isCell( ResultDirectory dir, String name ) {
+        Result result = getResult( dir );
+        if ( result == null ) {
+            return false;
+        }
+        if ( dir.column >= 0 ) {
+            return dir.result == result && rowOf( name, result ) >= 0;
+        }
+        return result.containsColumn( name );
+    }
 
-        private void rename( String newName ) {
-            while ( newName.startsWith( "/" ) ) {
-                newName = newName.substring( 1 );
-            }
-            if ( this instanceof ResultFile ) {
-                ((ResultFile) this).setOperation( Operation.WRITE );
-                ((ResultFile) this).createdByFS = true;
-            }
-            name = newName;
+    /**
+     * @return The row a file of a column directory is named after, e.g. 12 for 12.png, or -1
+     */
+    private static int rowOf( String name, Result result ) {
+        int dot = name.indexOf( '.' );
+        String row = dot < 0 ? name : name.substring( 0, dot );
+        try {
+            int i = Integer.parseInt( row );
+            return i >= 0 && i < result.getRowCount() && String.valueOf( i ).equals( row ) ? i : -1;
+        } catch ( NumberFormatException e ) {
+            return -1;
         }
     }
 
+    /**
+     * Add a path and, if it is a directory, all paths below it to the index
+     */
+    private void index( String path, ResultPath p ) {
+        index.put( path, p );
+        if ( p instanceof ResultDirectory ) {
+            ((ResultDirectory) p).contents.forEach( ( name, child ) -> index( path + "/" + name, child ) );
+        }
+    }
 
-    static Gson gson = new Gson();
-    @Getter
-    private final ResultDirectory rootDirectory;
-    @Setter
-    @Getter
-    private Result result;
+    private void unindex( String path, ResultPath p ) {
+        index.remove( path, p );
+        if ( p instanceof ResultDirectory ) {
+            ((ResultDirectory) p).contents.forEach( ( name, child ) -> unindex( path + "/" + name, child ) );
+        }
+    }
 
-    public ResultFS() {
-        this.rootDirectory = new ResultDirectory( "root" );
+    /**
+     * Keep track of a row directory that loaded its files. If more rows than configured are loaded,
+     * unchanged rows that were not accessed since the last pass are released (second chance / clock policy).
+     * Rows with changes are pinned: they are dropped from the ring once the clock reaches them
+     * and added again once their changes were committed, see {@link #unpin}.
+     */
+    private void loaded( ResultDirectory dir ) {
+        if ( !QTFConfig.isLazyRows() ) {
+            return;
+        }
+        final int limit = QTFConfig.getLoadedRows();
+        synchronized ( loadedRows ) {
+            if ( !dir.queued ) {
+                dir.queued = true;
+                loadedRows.add( dir );
+            }
+            for ( int i = 2 * loadedRows.size(); i > 0 && loadedRows.size() > limit; i-- ) {
+                ResultDirectory eldest = loadedRows.poll();
+                if ( eldest.pinned ) {
+                    eldest.queued = false;
+                } else if ( eldest.referenced ) {
+                    eldest.referenced = false;
+                    loadedRows.add( eldest );
+                } else if ( !eldest.unload() && eldest.parent != null ) {
+                    // a file is being written and the row is pinned once the write is recorded
+                    log.debug( "Row " + eldest.getPath() + " is being changed and stays loaded." );
+                    loadedRows.add( eldest );
+                } else {
+                    eldest.queued = false;
+                }
+            }
+        }
     }
 
-    public void add( ResultPath path ) {
-        this.rootDirectory.add( path );
+    /**
+     * Keep a row with changes loaded without passing it in the ring of loaded rows
+     */
+    private static void pin( ResultDirectory row ) {
+        if ( row.result != null && row.ithRow >= 0 ) {
+            row.pinned = true;
+        }
+    }
+
+    /**
+     * Return a row whose changes were committed to the ring of loaded rows, so it can be released again
+     */
+    private void unpin( ResultDirectory row ) {
+        if ( !row.pinned ) {
+            return;
+        }
+        row.pinned = false;
+        // files that were changed again keep the row pinned
+        synchronized ( row ) {
+            for ( ResultPath p : row.contents.values() ) {
+                if ( p instanceof ResultFile && ((ResultFile) p).createdByFS ) {
+                    row.pinned = true;
+                    return;
+                }
+            }
+        }
+        synchronized ( loadedRows ) {
+            if ( !row.pinned && !row.queued && row.loaded && row.parent != null && QTFConfig.isLazyRows() ) {
+                row.queued = true;
+                loadedRows.add( row );
+            }
+        }
     }
 
     @Override
@@ -398,7 +1927,7 @@ public class ResultFS extends FuseStubFS {
         ResultPath parent = getParentPath( path );
         if ( parent instanceof ResultDirectory ) {
             String lastComponent = getLastComponent( path );
-            ((ResultDirectory) parent).mkfile( lastComponent, result != null && result.containsColumn( lastComponent ) );
+            ((ResultDirectory) parent).mkfile( lastComponent, isCell( (ResultDirectory) parent, lastComponent ) );
             return 0;
         }
         return -ErrorCodes.ENOENT();
@@ -409,8 +1938,7 @@ public class ResultFS extends FuseStubFS {
     public int getattr( String path, FileStat stat ) {
         ResultPath p = getPath( path );
         if ( p != null ) {
-            p.getattr( stat, getContext() );
-            return 0;
+            return p.getattr( stat, getContext() );
         }
         return -ErrorCodes.ENOENT();
     }
@@ -431,11 +1959,52 @@ public class ResultFS extends FuseStubFS {
     }
 
     private ResultPath getParentPath( String path ) {
-        return rootDirectory.find( path.substring( 0, path.lastIndexOf( "/" ) ) );
+        return getPath( path.substring( 0, path.lastIndexOf( "/" ) ) );
     }
 
     private ResultPath getPath( String path ) {
-        return rootDirectory.find( path );
+        ResultPath p = lookup( path );
+        if ( p == null || p.isDeleted() ) {
+            return null;
+        }
+        // the shared fields are only written if they change, so parallel lookups do not contend for them
+        ResultDirectory parent = p.parent;
+        if ( parent != null && !parent.referenced ) {
+            parent.referenced = true;
+        }
+        ResultDirectory dir = p instanceof ResultDirectory ? (ResultDirectory) p : parent;
+        if ( dir != null && dir.namespace != null ) {
+            long now = System.currentTimeMillis();
+            if ( dir.namespace.lastAccess != now ) {
+                dir.namespace.lastAccess = now;
+            }
+        }
+        return p;
+    }
+
+    private ResultPath lookup( String path ) {
+        ResultPath p = index.get( path );
+        if ( p != null ) {
+            return p;
+        }
+        if ( path.isEmpty() ) {
+            return rootDirectory;
+        }
+        int i = path.lastIndexOf( "/" );
+        if ( i <= 0 ) {
+            return null;
+        }
+        // the path might be part of a row directory whose files are not loaded
+        ResultPath parent = lookup( path.substring( 0, i ) );
+        if ( parent instanceof ResultDirectory && !((ResultDirectory) parent).loaded ) {
+            ((ResultDirectory) parent).load();
+            return index.get( path );
+        }
+        // the path might be a view that was not queried yet
+        if ( parent instanceof ResultDirectory && ((ResultDirectory) parent).filter != null ) {
+            return resolve( (ResultDirectory) parent, path.substring( i + 1 ) );
+        }
+        return null;
     }
 
 
@@ -474,24 +2043,34 @@ public class ResultFS extends FuseStubFS {
         if ( !(p instanceof ResultDirectory) ) {
             return -ErrorCodes.ENOTDIR();
         }
-        filter.apply( buf, ".", null, 0 );
-        filter.apply( buf, "..", null, 0 );
-        ((ResultDirectory) p).read( buf, filter );
+        ResultDirectory dir = (ResultDirectory) p;
+        if ( dir.namespace != null && dir.namespace.view && dir.namespace.directory == dir ) {
+            // a view is listed once its rows were received, unless that takes too long
+            dir.namespace.awaitResult();
+        }
+        if ( dir.result != null && dir.ithRow >= 0 ) {
+            // the files of a listed row are likely to be opened next
+            prefetcher.listed( dir.result, dir.ithRow );
+        }
+        // the attributes of the files are usually requested right after the listing
+        dir.statFiles();
+        dir.read( buf, filter, offset );
         return 0;
     }
 
     @Override
     public int statfs( String path, Statvfs stbuf ) {
-        final int capacityGB = QTFConfig.getFuseCapacityGB();
+        final long blocks = scratch.capacity / 1024;
+        final long free = scratch.getFree() / 1024;
         stbuf.f_bsize.set( 1024 );
         stbuf.f_frsize.set( 1024 );// fs block size
-        stbuf.f_blocks.set( 1024 * 1024 * capacityGB );// total data blocks in file system
-        stbuf.f_bfree.set( 1024 * 1024 * capacityGB );// free blocks in fs
-        stbuf.f_bavail.set( 1024 * 1024 * capacityGB );//free blocks for non-root
+        stbuf.f_blocks.set( blocks );// total data blocks in file system
+        stbuf.f_bfree.set( free );// free blocks in fs
+        stbuf.f_bavail.set( free );//free blocks for non-root
         stbuf.f_files.set( 1024 );//total file nodes
         stbuf.f_ffree.set( 1024 );//free file nodes
         stbuf.f_favail.set( 1024 );//free inodes for non-root
-        stbuf.f_unused.set( 1024 * 1024 * capacityGB );
+        stbuf.f_unused.set( free );
 
         return super.statfs( path, stbuf );
     }
@@ -510,13 +2089,16 @@ public class ResultFS extends FuseStubFS {
         if ( !(newParent instanceof ResultDirectory) ) {
             return -ErrorCodes.ENOTDIR();
         }
-        if ( result.containsColumn( p.name ) ) {
+        if ( isCell( p.parent, p.name ) ) {
             p.pseudoDelete();
         } else {
             p.delete();
         }
         p.rename( newName.substring( newName.lastIndexOf( "/" ) ) );
         ((ResultDirectory) newParent).add( p );
+        if ( p instanceof ResultFile ) {
+            markDirty( (ResultFile) p );
+        }
         return 0;
     }
 
@@ -530,6 +2112,12 @@ public class ResultFS extends FuseStubFS {
         if ( !(p instanceof ResultDirectory) ) {
             return -ErrorCodes.ENOTDIR();
         }
+        Namespace namespace = ((ResultDirectory) p).namespace;
+        if ( namespace != null && namespace.directory == p ) {
+            // removing the directory of a namespace unmounts its result
+            unmount( namespace );
+            return 0;
+        }
         p.delete();
         return 0;
     }
@@ -544,8 +2132,20 @@ public class ResultFS extends FuseStubFS {
         if ( !(p instanceof ResultFile) ) {
             return -ErrorCodes.EISDIR();
         }
-        ((ResultFile) p).truncate( offset );
-        return 0;
+        ResultFile rf = (ResultFile) p;
+        if ( rf.isReadOnly() ) {
+            return -ErrorCodes.EACCES();
+        }
+        if ( !rf.beginWrite() ) {
+            // the row was unloaded after the lookup, the file is built again
+            return truncate( path, offset );
+        }
+        try {
+            rf.setOperation( Operation.WRITE );
+            return rf.truncate( offset );
+        } finally {
+            rf.endWrite();
+        }
     }
 
     @Override
@@ -555,7 +2155,7 @@ public class ResultFS extends FuseStubFS {
         if ( p == null ) {
             return -ErrorCodes.ENOENT();
         }
-        if ( result.containsColumn( p.name ) ) {
+        if ( isCell( p.parent, p.name ) ) {
             p.pseudoDelete();
         } else {
             p.delete();
@@ -565,6 +2165,11 @@ public class ResultFS extends FuseStubFS {
 
     @Override
     public int open( String path, FuseFileInfo fi ) {
+        ResultPath p = getPath( path );
+        if ( p instanceof ResultFile ) {
+            // the size of a multimedia file is usually known from getattr, otherwise it is requested before the file is read
+            ((ResultFile) p).getSize();
+        }
         return 0;
     }
 
@@ -579,8 +2184,19 @@ public class ResultFS extends FuseStubFS {
             return -ErrorCodes.EISDIR();
         }
         ResultFile rf = (ResultFile) p;
-        rf.setOperation( Operation.WRITE );
-        return rf.write( buf, size, offset );
+        if ( rf.isReadOnly() ) {
+            return -ErrorCodes.EACCES();
+        }
+        if ( !rf.beginWrite() ) {
+            // the row was unloaded after the lookup, the file is built again
+            return write( path, buf, size, offset, fi );
+        }
+        try {
+            rf.setOperation( Operation.WRITE );
+            return rf.write( buf, size, offset );
+        } finally {
+            rf.endWrite();
+        }
     }
 
     /**
@@ -591,26 +2207,44 @@ public class ResultFS extends FuseStubFS {
         return super.chmod( path, mode );
     }
 
+    /**
+     * Unmount all namespaces
+     */
     public void reset() {
-        rootDirectory.contents.clear();
+        for ( Namespace namespace : namespaces.values() ) {
+            unmount( namespace );
+        }
+        synchronized ( rootDirectory ) {
+            rootDirectory.clear();
+            index.clear();
+            index.put( "/", rootDirectory );
+        }
+        synchronized ( loadedRows ) {
+            loadedRows.clear();
+        }
+        prefetcher.stop();
+        scratch.clear();
     }
 
     /**
-     * Determine changes in FS and create corresponding SQL statements
-     *
-     * @return BatchUpdateRequest
+     * Record that a file was changed, in the namespace it belongs to
      */
-    public BatchUpdateRequest getBatchUpdateRequest() {
-        if ( result.table == null ) {
-            return null;
+    private void markDirty( ResultFile file ) {
+        ResultDirectory row = file.parent;
+        if ( row != null && row.namespace != null ) {
+            pin( row );
+            row.namespace.markDirty( file );
         }
-        BatchUpdateRequest updateRequest = new BatchUpdateRequest( result );
-        for ( ResultPath rp : rootDirectory.contents.values() ) {
-            if ( rp instanceof ResultDirectory && !rp.isDeleted() ) {
-                ResultDirectory rd = (ResultDirectory) rp;
-                rd.getUpdate( updateRequest );
-            }
+    }
+
+    /**
+     * @return The number of changed cells in all namespaces that have not been committed yet
+     */
+    public int getPendingChanges() {
+        int changes = 0;
+        for ( Namespace namespace : namespaces.values() ) {
+            changes += namespace.getPendingChanges();
         }
-        return updateRequest;
+        return changes;
     }
 }
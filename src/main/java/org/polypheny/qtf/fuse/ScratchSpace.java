@@ -0,0 +1,153 @@
+/*
+ * Copyright 2019-2021 The Polypheny Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.polypheny.qtf.fuse;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.polypheny.qtf.QTFConfig;
+
+
+/**
+ * Keeps track of the space that is used by the contents of modified files.
+ * The contents are kept on the heap, until a file or all files together exceed a threshold.
+ * Then the contents are moved to a memory-mapped file in a directory of this process in the scratch directory.
+ * The space of all files is limited by the capacity of the FS.
+ */
+@Slf4j
+class ScratchSpace {
+
+    private static final String SUFFIX = ".scratch";
+    private static final String PREFIX = "qtf-";
+
+    final long fileThreshold;
+    final long heapThreshold;
+    final long capacity;
+    private final File directory;
+    /**
+     * Bytes of heap memory that are allocated by buffers
+     */
+    private final AtomicLong heapUsed = new AtomicLong();
+    /**
+     * Sum of the lengths of all buffers
+     */
+    private final AtomicLong used = new AtomicLong();
+    private final Set<FileBuffer> buffers = ConcurrentHashMap.newKeySet();
+
+
+    ScratchSpace() {
+        this.fileThreshold = QTFConfig.getSpillFileMB() * 1024L * 1024L;
+        this.heapThreshold = QTFConfig.getSpillTotalMB() * 1024L * 1024L;
+        this.capacity = QTFConfig.getFuseCapacityGB() * 1024L * 1024L * 1024L;
+        // each process has a directory of its own, so a second instance does not remove the files of the first one
+        File base = QTFConfig.getScratchDir();
+        removeLeftovers( base );
+        this.directory = new File( base, PREFIX + ProcessHandle.current().pid() );
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            log.error( "Could not create the scratch directory " + directory );
+        }
+        // registered before the files, so it is deleted after them
+        directory.deleteOnExit();
+    }
+
+    /**
+     * Remove the directories of processes that are no longer running, e.g. because they were killed
+     */
+    private static void removeLeftovers( File base ) {
+        File[] leftovers = base.listFiles( ( dir, name ) -> name.matches( PREFIX + "\\d+" ) );
+        if ( leftovers == null ) {
+            return;
+        }
+        for ( File leftover : leftovers ) {
+            long pid = Long.parseLong( leftover.getName().substring( PREFIX.length() ) );
+            if ( ProcessHandle.of( pid ).map( ProcessHandle::isAlive ).orElse( false ) ) {
+                continue;
+            }
+            File[] files = leftover.listFiles( ( dir, name ) -> name.endsWith( SUFFIX ) );
+            if ( files != null ) {
+                for ( File f : files ) {
+                    if ( !f.delete() ) {
+                        log.debug( "Could not delete " + f );
+                    }
+                }
+            }
+            if ( !leftover.delete() ) {
+                log.debug( "Could not delete " + leftover );
+            }
+        }
+    }
+
+    File createFile() throws IOException {
+        File file = File.createTempFile( "qtf", SUFFIX, directory );
+        file.deleteOnExit();
+        return file;
+    }
+
+    void register( FileBuffer buffer ) {
+        buffers.add( buffer );
+    }
+
+    void unregister( FileBuffer buffer ) {
+        buffers.remove( buffer );
+    }
+
+    /**
+     * @return true if a buffer may allocate more heap memory, false if it needs to be spilled
+     */
+    boolean fitsHeap( long bytes ) {
+        return heapUsed.get() + bytes <= heapThreshold;
+    }
+
+    void addHeap( long bytes ) {
+        heapUsed.addAndGet( bytes );
+    }
+
+    /**
+     * Reserve space for a buffer that grows
+     *
+     * @return false if the capacity of the FS would be exceeded
+     */
+    boolean reserve( long bytes ) {
+        if ( used.addAndGet( bytes ) > capacity && bytes > 0 ) {
+            used.addAndGet( -bytes );
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of bytes that can still be written
+     */
+    long getFree() {
+        return Math.max( 0, Math.min( capacity - used.get(), directory.getUsableSpace() ) );
+    }
+
+    /**
+     * Release all buffers, e.g. when the FS is reset
+     */
+    void clear() {
+        for ( FileBuffer buffer : new ArrayList<>( buffers ) ) {
+            buffer.release();
+        }
+    }
+
+}
@@ -19,12 +19,12 @@ package org.polypheny.qtf.web;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import lombok.Getter;
 import lombok.Setter;
 import org.polypheny.qtf.fuse.ResultFS.Operation;
 import org.polypheny.qtf.fuse.ResultFS.ResultFile;
-import org.polypheny.qtf.web.Result.DbColumn;
 
 
 public class BatchUpdateRequest {
@@ -44,22 +44,70 @@ public class BatchUpdateRequest {
         this.updates.add( update );
     }
 
+    /**
+     * Split the request into requests with at most maxUpdates updates and about maxBytes bytes of files each.
+     * An update whose files exceed maxBytes gets a request of its own.
+     */
+    public List<BatchUpdateRequest> split( int maxUpdates, long maxBytes ) {
+        List<BatchUpdateRequest> batches = new ArrayList<>();
+        BatchUpdateRequest batch = null;
+        long batchBytes = 0;
+        for ( Update update : updates ) {
+            long bytes = update.getByteSize();
+            if ( batch == null || batch.updates.size() >= maxUpdates || (batchBytes > 0 && batchBytes + bytes > maxBytes) ) {
+                batch = new BatchUpdateRequest( result );
+                batches.add( batch );
+                batchBytes = 0;
+            }
+            batch.addUpdate( update );
+            batchBytes += bytes;
+        }
+        return batches;
+    }
+
+    /**
+     * @return Number of bytes of the files of all updates
+     */
+    public long getByteSize() {
+        long bytes = 0;
+        for ( Update update : updates ) {
+            bytes += update.getByteSize();
+        }
+        return bytes;
+    }
+
     public class Update {
 
         final Map<String, String> oldPkValues = new HashMap<>();
         @Getter
         final Map<String, Value> newValues = new HashMap<>();
+        @Getter
+        final transient int ithRow;
+        /**
+         * The files of the update with the number of times they were changed when they were added,
+         * kept with the update so every batch of a split request knows its files
+         */
+        @Getter
+        final transient Map<ResultFile, Integer> files = new HashMap<>();
 
         public Update( int ithRow ) {
-            if ( ithRow < 0 || ithRow >= result.data.length ) {
+            if ( ithRow < 0 || ithRow >= result.getRowCount() ) {
                 throw new IllegalArgumentException( "The ith row " + ithRow + " does not exist in the resultSet." );
             }
-            for ( int j = 0; j < result.header.length; j++ ) {
-                DbColumn col = result.header[j];
-                if ( col.primary ) {
-                    oldPkValues.put( col.name, result.data[ithRow][j] );
+            this.ithRow = ithRow;
+            for ( int j : result.getPrimaryKeys() ) {
+                oldPkValues.put( result.header[j].name, result.getValue( ithRow, j ) );
+            }
+        }
+
+        long getByteSize() {
+            long bytes = 0;
+            for ( Value value : newValues.values() ) {
+                if ( value.file != null ) {
+                    bytes += value.file.getSize();
                 }
             }
+            return bytes;
         }
 
         public void addValue( ResultFile file ) {
@@ -67,6 +115,13 @@ public class BatchUpdateRequest {
             if ( key.contains( "." ) ) {
                 key = file.getName().substring( 0, file.getName().lastIndexOf( "." ) );
             }
+            addValue( key, file );
+        }
+
+        /**
+         * Add the value of a file for a column, e.g. for a file of a column directory that is named after its row
+         */
+        public void addValue( String key, ResultFile file ) {
             if ( file.getLastOp() == Operation.UNLINK ) {
                 if ( newValues.containsKey( key ) ) {
                     //e.g. if deleting img.png and then adding img.jpeg
@@ -74,11 +129,7 @@ public class BatchUpdateRequest {
                 }
                 newValues.put( key, new Value( null, null ) );
             } else {
-                if ( file.getLastOp() == null && file.getDataAsString() != null ) {
-                    newValues.put( key, new Value( file.getDataAsString(), null ) );
-                } else {
-                    newValues.put( key, new Value( null, file ) );
-                }
+                newValues.put( key, new Value( null, file ) );
             }
         }
     }
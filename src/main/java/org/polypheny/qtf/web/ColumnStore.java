@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019-2021 The Polypheny Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.polypheny.qtf.web;
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Stores the cells of one column of a result.
+ * The UTF-8 bytes of the cells are appended to direct (off-heap) blocks and addressed by an offset index,
+ * so the file system can serve a cell as a slice of its block, without a copy on the heap.
+ * Cells are appended by a single thread and can be read concurrently once they were published by the {@link Result}.
+ * Published cells can be replaced, e.g. by values that were committed, see {@link #set}.
+ */
+public class ColumnStore {
+
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+    /**
+     * Replaced cell that is null
+     */
+    private static final ByteBuffer NULL_CELL = ByteBuffer.allocate( 0 );
+
+    private volatile ByteBuffer[] blocks = new ByteBuffer[4];
+    private int blockCount = 0;
+    private ByteBuffer current;
+    /**
+     * Position of each cell: index of the block in the upper, offset within the block in the lower 32 bits
+     */
+    private volatile long[] positions = new long[1024];
+    /**
+     * Length of each cell in bytes, -1 for null values
+     */
+    private volatile int[] lengths = new int[1024];
+    private int size = 0;
+    private long byteSize = 0;
+    /**
+     * Cells that were replaced after they were appended, by their row. They are rare, so they are kept on the heap.
+     * Null until a cell is replaced.
+     */
+    private volatile ConcurrentHashMap<Integer, ByteBuffer> replaced;
+
+    void append( String value ) {
+        if ( size == lengths.length ) {
+            positions = Arrays.copyOf( positions, size * 2 );
+            lengths = Arrays.copyOf( lengths, size * 2 );
+        }
+        if ( value == null ) {
+            lengths[size++] = -1;
+            return;
+        }
+        byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+        if ( current == null || current.remaining() < bytes.length ) {
+            // large cells get a block of their own
+            current = ByteBuffer.allocateDirect( Math.max( bytes.length, BLOCK_SIZE ) );
+            if ( blockCount == blocks.length ) {
+                blocks = Arrays.copyOf( blocks, blockCount * 2 );
+            }
+            blocks[blockCount++] = current;
+        }
+        positions[size] = ((long) (blockCount - 1) << 32) | current.position();
+        lengths[size++] = bytes.length;
+        current.put( bytes );
+        byteSize += bytes.length;
+    }
+
+    /**
+     * Replace a published cell. The bytes of the replaced value stay in their block until the column is released.
+     */
+    synchronized void set( int row, String value ) {
+        if ( replaced == null ) {
+            replaced = new ConcurrentHashMap<>();
+        }
+        ByteBuffer cell = NULL_CELL;
+        if ( value != null ) {
+            byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+            cell = ByteBuffer.wrap( bytes );
+            byteSize += bytes.length;
+        }
+        replaced.put( row, cell );
+    }
+
+    public boolean isNull( int row ) {
+        ConcurrentHashMap<Integer, ByteBuffer> replaced = this.replaced;
+        if ( replaced != null ) {
+            ByteBuffer cell = replaced.get( row );
+            if ( cell != null ) {
+                return cell == NULL_CELL;
+            }
+        }
+        return lengths[row] < 0;
+    }
+
+    /**
+     * @return A read-only view of the bytes of a cell, or null if the cell is null
+     */
+    public ByteBuffer getBytes( int row ) {
+        ConcurrentHashMap<Integer, ByteBuffer> replaced = this.replaced;
+        if ( replaced != null ) {
+            ByteBuffer cell = replaced.get( row );
+            if ( cell != null ) {
+                return cell == NULL_CELL ? null : cell.asReadOnlyBuffer();
+            }
+        }
+        int length = lengths[row];
+        if ( length < 0 ) {
+            return null;
+        }
+        long position = positions[row];
+        ByteBuffer slice = blocks[(int) (position >>> 32)].duplicate();
+        int offset = (int) position;
+        slice.limit( offset + length );
+        slice.position( offset );
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    public String getValue( int row ) {
+        ByteBuffer bytes = getBytes( row );
+        if ( bytes == null ) {
+            return null;
+        }
+        return StandardCharsets.UTF_8.decode( bytes ).toString();
+    }
+
+    /**
+     * @return Number of bytes used by the cells of this column
+     */
+    public long getByteSize() {
+        return byteSize;
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019-2021 The Polypheny Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.polypheny.qtf.web;
+
+
+import com.google.gson.Gson;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import kong.unirest.ContentType;
+import kong.unirest.MultipartBody;
+import kong.unirest.Unirest;
+import lombok.extern.slf4j.Slf4j;
+import org.polypheny.qtf.QTFConfig;
+import org.polypheny.qtf.QueryInterface;
+import org.polypheny.qtf.fuse.BlockInputStream;
+import org.polypheny.qtf.fuse.ResultFS.ResultFile;
+import org.polypheny.qtf.web.BatchUpdateRequest.Update;
+import org.polypheny.qtf.web.BatchUpdateRequest.Value;
+
+
+/**
+ * Commits a {@link BatchUpdateRequest} in the background.
+ * The request is split into batches that are bounded by a number of rows and a number of bytes.
+ * The batches are uploaded by a fixed number of workers, so only that many requests are in flight at a time.
+ * Each batch is committed in a transaction of its own, unless the commit is configured to use a single transaction,
+ * in which case the request is sent as a whole. The progress is reported to the listener after every batch.
+ * Every batch that was committed is reported as well, so its changes are no longer pending, even if a later batch fails.
+ */
+@Slf4j
+public class CommitPipeline {
+
+    private final QueryInterface listener;
+    private final Gson gson = new Gson();
+
+
+    public CommitPipeline( QueryInterface listener ) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param committed Called with every batch that was committed, from the thread that committed it
+     */
+    public CompletableFuture<Result> commit( BatchUpdateRequest request, Consumer<BatchUpdateRequest> committed ) {
+        return CompletableFuture.supplyAsync( () -> run( request, committed ), r -> {
+            Thread t = new Thread( r, "commit" );
+            t.setDaemon( true );
+            t.start();
+        } );
+    }
+
+    private Result run( BatchUpdateRequest request, Consumer<BatchUpdateRequest> onCommitted ) {
+        final List<BatchUpdateRequest> batches;
+        if ( QTFConfig.isCommitTransaction() ) {
+            batches = Collections.singletonList( request );
+        } else {
+            batches = request.split( QTFConfig.getCommitBatchRows(), QTFConfig.getCommitBatchMB() * 1024L * 1024L );
+        }
+        final long totalBytes = request.getByteSize();
+        final long start = System.currentTimeMillis();
+        final AtomicInteger next = new AtomicInteger();
+        final List<String> errors = Collections.synchronizedList( new ArrayList<>() );
+        final int[] committed = { 0 };
+        final long[] committedBytes = { 0 };
+        final int[] affectedRows = { 0 };
+
+        Runnable worker = () -> {
+            // no further batches are started once a batch failed
+            while ( errors.isEmpty() ) {
+                int i = next.getAndIncrement();
+                if ( i >= batches.size() ) {
+                    return;
+                }
+                BatchUpdateRequest batch = batches.get( i );
+                long bytes = batch.getByteSize();
+                Result result;
+                try {
+                    result = send( batch );
+                } catch ( RuntimeException e ) {
+                    log.error( "Could not commit a batch", e );
+                    result = new Result( e.getMessage() );
+                }
+                if ( result == null ) {
+                    result = new Result( "Received no response" );
+                }
+                if ( result.error != null ) {
+                    errors.add( result.error );
+                    continue;
+                }
+                onCommitted.accept( batch );
+                CommitProgress progress;
+                synchronized ( committed ) {
+                    committed[0]++;
+                    committedBytes[0] += bytes;
+                    if ( result.affectedRows != null ) {
+                        affectedRows[0] += result.affectedRows;
+                    }
+                    progress = new CommitProgress( batches.size(), committed[0], totalBytes, committedBytes[0], affectedRows[0], System.currentTimeMillis() - start );
+                }
+                Result update = new Result();
+                update.affectedRows = progress.getAffectedRows();
+                update.progress = progress;
+                listener.onResultUpdate( update );
+            }
+        };
+
+        int threads = Math.min( QTFConfig.getCommitThreads(), batches.size() );
+        List<Thread> workers = new ArrayList<>();
+        for ( int t = 0; t < threads; t++ ) {
+            Thread thread = new Thread( worker, "commit-" + t );
+            thread.setDaemon( true );
+            thread.start();
+            workers.add( thread );
+        }
+        for ( Thread thread : workers ) {
+            try {
+                thread.join();
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return new Result( "The commit was interrupted" );
+            }
+        }
+
+        if ( !errors.isEmpty() ) {
+            String error = errors.get( 0 );
+            if ( committed[0] > 0 ) {
+                error += String.format( " (%d of %d batches were committed)", committed[0], batches.size() );
+            }
+            Result failed = new Result( error );
+            failed.affectedRows = affectedRows[0];
+            return failed;
+        }
+        Result result = new Result();
+        result.affectedRows = affectedRows[0];
+        return result;
+    }
+
+    private Result send( BatchUpdateRequest request ) {
+        //multiPartContent: see https://github.com/Kong/unirest-java/issues/165
+        MultipartBody body = Unirest.post( QTFConfig.getRestInterface( "batchUpdate" ) ).multiPartContent();
+        int counter = 0;
+        for ( Update update : request.getUpdates() ) {
+            for ( Value value : update.getNewValues().values() ) {
+                if ( value.getFile() != null ) {
+                    value.setFileName( "file" + ++counter );
+                    // stream the contents from memory instead of reading them back through the mount
+                    ResultFile file = value.getFile();
+                    body.field( "file" + counter, file.getInputStream(), ContentType.APPLICATION_OCTET_STREAM, file.getName() );
+                }
+            }
+        }
+        // a part without a file name, as the form field the request was sent in before, with the JSON streamed into it
+        body.field( "request", toJson( request ), ContentType.create( "text/plain", StandardCharsets.UTF_8 ) );
+        return body.asObject( Result.class ).getBody();
+    }
+
+    /**
+     * Serialize a request while it is sent, one update at a time, so the JSON of a large request is never held in
+     * memory as a whole. The output is the same as serializing the whole request with Gson.
+     * Errors are thrown while the request is sent, so they fail the batch instead of truncating the request.
+     */
+    private InputStream toJson( BatchUpdateRequest request ) {
+        List<Update> updates = request.getUpdates();
+        return new BlockInputStream() {
+            // -1 for the fields before the updates, the size of the updates for the end of the request
+            int next = -1;
+
+            @Override
+            protected ByteBuffer nextBlock() {
+                String json;
+                if ( next < 0 ) {
+                    json = request.tableId == null ? "{\"updates\":[" : "{\"tableId\":" + gson.toJson( request.tableId ) + ",\"updates\":[";
+                } else if ( next < updates.size() ) {
+                    json = (next > 0 ? "," : "") + gson.toJson( updates.get( next ), Update.class );
+                } else if ( next == updates.size() ) {
+                    json = "]}";
+                } else {
+                    return null;
+                }
+                next++;
+                return ByteBuffer.wrap( json.getBytes( StandardCharsets.UTF_8 ) );
+            }
+        };
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019-2021 The Polypheny Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.polypheny.qtf.web;
+
+
+import lombok.Getter;
+
+
+/**
+ * Progress of a commit that is still running, see {@link CommitPipeline}
+ */
+@Getter
+public class CommitProgress {
+
+    private final int batches;
+    private final int committedBatches;
+    private final long bytes;
+    private final long committedBytes;
+    private final int affectedRows;
+    private final long elapsedMillis;
+
+    CommitProgress( int batches, int committedBatches, long bytes, long committedBytes, int affectedRows, long elapsedMillis ) {
+        this.batches = batches;
+        this.committedBatches = committedBatches;
+        this.bytes = bytes;
+        this.committedBytes = committedBytes;
+        this.affectedRows = affectedRows;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public double getBytesPerSecond() {
+        return elapsedMillis == 0 ? 0 : committedBytes * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format( "Committed %d of %d batches, %.1f of %.1f MB (%.1f MB/s)",
+                committedBatches, batches, committedBytes / 1048576.0, bytes / 1048576.0, getBytesPerSecond() / 1048576.0 );
+    }
+
+}
@@ -17,38 +17,302 @@
 package org.polypheny.qtf.web;
 
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 
 public class Result {
 
+    private static final int MAX_FILE_COLUMNS = 4096;
+
+
     public static class DbColumn {
 
+        private static final Pattern NUMBER = Pattern.compile( "-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?" );
+
         public String name;
         public String dataType;
         public boolean primary;
+
+        /**
+         * @return The type of the column without its parameters, e.g. DECIMAL for DECIMAL(10,2)
+         */
+        public String getBaseType() {
+            if ( dataType == null ) {
+                return "";
+            }
+            int parenthesis = dataType.indexOf( '(' );
+            return parenthesis < 0 ? dataType : dataType.substring( 0, parenthesis );
+        }
+
+        public boolean isNumeric() {
+            switch ( getBaseType() ) {
+                case "TINYINT":
+                case "SMALLINT":
+                case "INTEGER":
+                case "BIGINT":
+                case "DECIMAL":
+                case "REAL":
+                case "FLOAT":
+                case "DOUBLE":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        public boolean isBoolean() {
+            return getBaseType().equals( "BOOLEAN" );
+        }
+
+        /**
+         * @return false if a value cannot be a value of this column, e.g. a word in a numeric column
+         */
+        public boolean isValid( String value ) {
+            if ( isNumeric() ) {
+                return NUMBER.matcher( value ).matches();
+            }
+            if ( isBoolean() ) {
+                return value.equalsIgnoreCase( "true" ) || value.equalsIgnoreCase( "false" );
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the cells of this column are urls of files that are served by Polypheny
+         */
+        public boolean isMultimedia() {
+            switch ( getBaseType() ) {
+                case "FILE":
+                case "IMAGE":
+                case "VIDEO":
+                case "SOUND":
+                    return true;
+                default:
+                    return false;
+            }
+        }
     }
 
 
     public String table;
     public DbColumn[] header;
+    /**
+     * Only set if the result was bound by Gson. Results received over the websocket keep their cells in {@link #columns}.
+     */
     public String[][] data;
     public String error;
     public Integer affectedRows;
     public String generatedQuery;
+    /**
+     * Only set on results that report the progress of a running commit
+     */
+    public transient CommitProgress progress;
+    private transient ColumnStore[] columns;
+    /**
+     * Number of rows that are stored in {@link #columns} and can be read
+     */
+    private transient volatile int rowCount;
+    /**
+     * Lookup structures that are built from the header once, see {@link #buildIndex()}.
+     * The column index is assigned last, so the others are visible once it is set.
+     */
+    private transient volatile Map<String, Integer> columnIndex;
+    private transient int[] primaryKeys;
+    private transient boolean[] multimedia;
+    /**
+     * Column of the files that were looked up, e.g. "img.png", so the extension does not need to be removed again
+     */
+    private transient ConcurrentHashMap<String, Integer> fileColumns;
+
+    public Result() {
+    }
 
     public Result( String error ) {
         this.error = error;
     }
 
-    public boolean containsColumn( String columnName ) {
-        final String test;
-        if ( columnName.contains( "." ) ) {
-            test = columnName.substring( 0, columnName.lastIndexOf( "." ) );
+    /**
+     * Prepare the column stores, the header needs to be known.
+     */
+    void initColumns() {
+        columns = new ColumnStore[header.length];
+        for ( int i = 0; i < columns.length; i++ ) {
+            columns[i] = new ColumnStore();
+        }
+        buildIndex();
+    }
+
+    /**
+     * Build the lookup structures for the columns of the header.
+     * A name that is used by several columns is not mapped to a column, since their files could not be told apart.
+     */
+    private synchronized void buildIndex() {
+        if ( columnIndex != null ) {
+            return;
+        }
+        Map<String, Integer> index = new HashMap<>();
+        List<Integer> pks = new ArrayList<>();
+        boolean[] mm = new boolean[header.length];
+        for ( int i = 0; i < header.length; i++ ) {
+            DbColumn col = header[i];
+            if ( index.putIfAbsent( col.name, i ) != null ) {
+                index.put( col.name, -1 );
+            }
+            if ( col.primary ) {
+                pks.add( i );
+            }
+            mm[i] = col.isMultimedia();
+        }
+        primaryKeys = pks.stream().mapToInt( Integer::intValue ).toArray();
+        multimedia = mm;
+        fileColumns = new ConcurrentHashMap<>();
+        columnIndex = Collections.unmodifiableMap( index );
+    }
+
+    private Map<String, Integer> index() {
+        if ( columnIndex == null ) {
+            // results that were bound by Gson
+            buildIndex();
+        }
+        return columnIndex;
+    }
+
+    void append( int column, String value ) {
+        columns[column].append( value );
+    }
+
+    /**
+     * Publish a row whose cells were added with {@link #append}
+     */
+    void finishRow() {
+        rowCount++;
+    }
+
+    public boolean hasData() {
+        return columns != null || data != null;
+    }
+
+    public int getRowCount() {
+        if ( columns != null ) {
+            return rowCount;
+        }
+        return data == null ? 0 : data.length;
+    }
+
+    /**
+     * @return Approximate number of bytes of memory used by the cells of this result, including their offset index
+     */
+    public long getByteSize() {
+        if ( columns == null ) {
+            return 0;
+        }
+        long bytes = 0;
+        for ( ColumnStore column : columns ) {
+            bytes += column.getByteSize() + 12L * rowCount;
+        }
+        return bytes;
+    }
+
+    public boolean isNull( int row, int column ) {
+        if ( columns != null ) {
+            return columns[column].isNull( row );
+        }
+        return data[row][column] == null;
+    }
+
+    public String getValue( int row, int column ) {
+        if ( columns != null ) {
+            return columns[column].getValue( row );
+        }
+        return data[row][column];
+    }
+
+    /**
+     * Replace the value of a cell, e.g. with a value that was committed
+     */
+    public void setValue( int row, int column, String value ) {
+        if ( columns != null ) {
+            columns[column].set( row, value );
         } else {
-            test = columnName;
+            data[row][column] = value;
         }
-        return Arrays.stream( header ).filter( h -> h.name.equals( test ) ).count() == 1;
+    }
+
+    /**
+     * @return The UTF-8 bytes of a cell as read-only buffer, or null if the cell is null
+     */
+    public ByteBuffer getBytes( int row, int column ) {
+        if ( columns != null ) {
+            return columns[column].getBytes( row );
+        }
+        String value = data[row][column];
+        return value == null ? null : ByteBuffer.wrap( value.getBytes( StandardCharsets.UTF_8 ) ).asReadOnlyBuffer();
+    }
+
+    /**
+     * @param fileName Name of a file in a row directory, e.g. "name.txt"
+     * @return The index of the column the file belongs to or -1 if there is no such column
+     */
+    public int getColumnIndex( String fileName ) {
+        Map<String, Integer> index = index();
+        Integer column = fileColumns.get( fileName );
+        if ( column != null ) {
+            return column;
+        }
+        String name = fileName.contains( "." ) ? fileName.substring( 0, fileName.lastIndexOf( "." ) ) : fileName;
+        column = index.getOrDefault( name, -1 );
+        if ( column >= 0 && fileColumns.size() < MAX_FILE_COLUMNS ) {
+            fileColumns.put( fileName, column );
+        }
+        return column;
+    }
+
+    public boolean containsColumn( String columnName ) {
+        return getColumnIndex( columnName ) >= 0;
+    }
+
+    /**
+     * @return The indexes of the primary key columns
+     */
+    public int[] getPrimaryKeys() {
+        index();
+        return primaryKeys;
+    }
+
+    /**
+     * Mark the columns of the primary key of the table the rows were selected from, since the header of a query result
+     * does not tell whether a column is part of the primary key. Flags of the header are replaced.
+     *
+     * @param names The names of the primary key columns, from the metadata of the table
+     */
+    public synchronized void setPrimaryKey( String[] names ) {
+        index();
+        List<String> key = Arrays.asList( names );
+        List<Integer> pks = new ArrayList<>();
+        for ( int i = 0; i < header.length; i++ ) {
+            header[i].primary = key.contains( header[i].name );
+            if ( header[i].primary ) {
+                pks.add( i );
+            }
+        }
+        primaryKeys = pks.stream().mapToInt( Integer::intValue ).toArray();
+    }
+
+    /**
+     * @return true if the cells of a column are urls of files that are served by Polypheny
+     */
+    public boolean isMultimedia( int column ) {
+        index();
+        return multimedia[column];
     }
 
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2019-2021 The Polypheny Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.polypheny.qtf.web;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.polypheny.qtf.QTFConfig;
+
+
+/**
+ * Results of recent queries and tables, so a repeated request can be mounted without fetching its result again.
+ * The results are kept in the order they were used, the least recently used ones are evicted once the cache is full.
+ * A result expires after a configured time. The results that might contain a table are invalidated
+ * once changes to that table were committed.
+ */
+public class ResultCache {
+
+    private static class Entry {
+
+        final Result result;
+        final long bytes;
+        final long expires;
+
+        Entry( Result result, long bytes, long expires ) {
+            this.result = result;
+            this.bytes = bytes;
+            this.expires = expires;
+        }
+
+    }
+
+
+    private final long capacity;
+    private final long ttl;
+    // guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>( 16, 0.75f, true );
+    private long size = 0;
+
+
+    public ResultCache() {
+        this.capacity = QTFConfig.getResultCacheMB() * 1024L * 1024L;
+        this.ttl = QTFConfig.getResultCacheSeconds() * 1000L;
+    }
+
+    /**
+     * @return The key of a query. Whitespace outside of string literals and a trailing semicolon do not matter.
+     */
+    public static String queryKey( String query ) {
+        StringBuilder key = new StringBuilder( "query:" );
+        boolean inLiteral = false;
+        boolean space = false;
+        for ( char c : query.trim().toCharArray() ) {
+            if ( c == '\'' ) {
+                inLiteral = !inLiteral;
+            }
+            if ( !inLiteral && Character.isWhitespace( c ) ) {
+                space = true;
+                continue;
+            }
+            if ( space ) {
+                key.append( ' ' );
+                space = false;
+            }
+            key.append( c );
+        }
+        while ( key.charAt( key.length() - 1 ) == ';' ) {
+            key.setLength( key.length() - 1 );
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return The key of a table, tables without a schema are part of the public schema, see {@link UIRequest.TableRequest}
+     */
+    public static String tableKey( String tableId ) {
+        tableId = tableId.trim();
+        if ( !tableId.contains( "." ) ) {
+            tableId = "public." + tableId;
+        }
+        return "table:" + tableId;
+    }
+
+    /**
+     * @return The cached result of a request or null if it is not cached or expired
+     */
+    public synchronized Result get( String key ) {
+        Entry entry = entries.get( key );
+        if ( entry == null ) {
+            return null;
+        }
+        if ( entry.expires < System.currentTimeMillis() ) {
+            remove( key );
+            return null;
+        }
+        return entry.result;
+    }
+
+    /**
+     * Cache the result of a request. Results with errors, without rows or larger than the cache are not cached.
+     */
+    public synchronized void put( String key, Result result ) {
+        if ( result.error != null || !result.hasData() ) {
+            return;
+        }
+        long bytes = result.getByteSize();
+        remove( key );
+        if ( bytes > capacity || ttl <= 0 ) {
+            return;
+        }
+        entries.put( key, new Entry( result, bytes, System.currentTimeMillis() + ttl ) );
+        size += bytes;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ( size > capacity && it.hasNext() ) {
+            Entry eldest = it.next().getValue();
+            size -= eldest.bytes;
+            it.remove();
+        }
+    }
+
+    /**
+     * Remove the results that might contain a table, after changes to the table were committed.
+     * Results of queries that are not known to be based on a single table are removed as well.
+     */
+    public synchronized void invalidate( String table ) {
+        Iterator<Entry> it = entries.values().iterator();
+        while ( it.hasNext() ) {
+            Entry entry = it.next();
+            String cached = entry.result.table;
+            if ( cached == null || table == null || cached.equalsIgnoreCase( table ) ) {
+                size -= entry.bytes;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove all results, e.g. after a query changed an unknown number of tables
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    private void remove( String key ) {
+        Entry removed = entries.remove( key );
+        if ( removed != null ) {
+            size -= removed.bytes;
+        }
+    }
+
+}
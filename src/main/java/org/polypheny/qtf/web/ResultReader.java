@@ -0,0 +1,238 @@
+/*
+ * Copyright 2019-2021 The Polypheny Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.polypheny.qtf.web;
+
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import org.polypheny.qtf.web.Result.DbColumn;
+
+
+/**
+ * Streaming parser for the results that are sent over the websocket.
+ * Instead of binding the whole message to a {@link Result} at once, the cells of each row are appended to the
+ * column stores of the result and the row is handed to a {@link RowHandler} as soon as it has been parsed,
+ * so the file system can be populated while the message is still being read.
+ */
+public class ResultReader {
+
+    public interface RowHandler {
+
+        /**
+         * Called once, as soon as the header of the result is known and before the first row is passed to {@link #onRow}
+         */
+        void onHeader( Result result );
+
+        void onRow( Result result, int ithRow );
+
+    }
+
+
+    private final JsonReader reader;
+    private final RowHandler handler;
+
+    private ResultReader( Reader in, RowHandler handler ) {
+        this.reader = new JsonReader( in );
+        this.reader.setLenient( true );
+        this.handler = handler;
+    }
+
+    /**
+     * Parse a result message. The message is either a single result or an array of results,
+     * in which case only the first one is considered.
+     */
+    public static Result read( Reader in, RowHandler handler ) throws IOException {
+        return new ResultReader( in, handler ).read();
+    }
+
+    private Result read() throws IOException {
+        if ( reader.peek() != JsonToken.BEGIN_ARRAY ) {
+            return readResult();
+        }
+        reader.beginArray();
+        if ( !reader.hasNext() ) {
+            return new Result( "Received an empty result." );
+        }
+        Result result = readResult();
+        while ( reader.hasNext() ) {
+            reader.skipValue();
+        }
+        reader.endArray();
+        return result;
+    }
+
+    private Result readResult() throws IOException {
+        Result result = new Result();
+        // rows that arrive before the header are kept until the header is known
+        List<String[]> pending = null;
+        reader.beginObject();
+        while ( reader.hasNext() ) {
+            String name = reader.nextName();
+            if ( reader.peek() == JsonToken.NULL ) {
+                reader.nextNull();
+                continue;
+            }
+            switch ( name ) {
+                case "table":
+                    result.table = reader.nextString();
+                    break;
+                case "error":
+                    result.error = readCell();
+                    break;
+                case "affectedRows":
+                    result.affectedRows = reader.nextInt();
+                    break;
+                case "generatedQuery":
+                    result.generatedQuery = reader.nextString();
+                    break;
+                case "header":
+                    result.header = readHeader();
+                    if ( pending != null ) {
+                        announce( result, pending );
+                        pending = null;
+                    }
+                    break;
+                case "data":
+                    if ( result.header == null ) {
+                        pending = readPendingRows();
+                    } else {
+                        readRows( result );
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if ( pending != null ) {
+            return new Result( "Received a result without a header." );
+        }
+        return result;
+    }
+
+    private DbColumn[] readHeader() throws IOException {
+        List<DbColumn> header = new ArrayList<>();
+        reader.beginArray();
+        while ( reader.hasNext() ) {
+            DbColumn col = new DbColumn();
+            reader.beginObject();
+            while ( reader.hasNext() ) {
+                String name = reader.nextName();
+                if ( reader.peek() == JsonToken.NULL ) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch ( name ) {
+                    case "name":
+                        col.name = reader.nextString();
+                        break;
+                    case "dataType":
+                        col.dataType = reader.nextString();
+                        break;
+                    case "primary":
+                        col.primary = reader.nextBoolean();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            header.add( col );
+        }
+        reader.endArray();
+        return header.toArray( new DbColumn[0] );
+    }
+
+    private void readRows( Result result ) throws IOException {
+        result.initColumns();
+        handler.onHeader( result );
+        final int width = result.header.length;
+        reader.beginArray();
+        for ( int ithRow = 0; reader.hasNext(); ithRow++ ) {
+            reader.beginArray();
+            int i = 0;
+            for ( ; reader.hasNext(); i++ ) {
+                String cell = readCell();
+                if ( i < width ) {
+                    result.append( i, cell );
+                }
+            }
+            for ( ; i < width; i++ ) {
+                result.append( i, null );
+            }
+            reader.endArray();
+            result.finishRow();
+            handler.onRow( result, ithRow );
+        }
+        reader.endArray();
+    }
+
+    private List<String[]> readPendingRows() throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        reader.beginArray();
+        while ( reader.hasNext() ) {
+            List<String> row = new ArrayList<>();
+            reader.beginArray();
+            while ( reader.hasNext() ) {
+                row.add( readCell() );
+            }
+            reader.endArray();
+            rows.add( row.toArray( new String[0] ) );
+        }
+        reader.endArray();
+        return rows;
+    }
+
+    /**
+     * Store the rows that were received before the header and hand them to the handler
+     */
+    private void announce( Result result, List<String[]> rows ) {
+        result.initColumns();
+        handler.onHeader( result );
+        for ( int ithRow = 0; ithRow < rows.size(); ithRow++ ) {
+            String[] row = rows.get( ithRow );
+            for ( int i = 0; i < result.header.length; i++ ) {
+                result.append( i, i < row.length ? row[i] : null );
+            }
+            rows.set( ithRow, null );
+            result.finishRow();
+            handler.onRow( result, ithRow );
+        }
+    }
+
+    private String readCell() throws IOException {
+        switch ( reader.peek() ) {
+            case NULL:
+                reader.nextNull();
+                return null;
+            case BOOLEAN:
+                return String.valueOf( reader.nextBoolean() );
+            case BEGIN_ARRAY:
+            case BEGIN_OBJECT:
+                return JsonParser.parseReader( reader ).toString();
+            default:
+                // numbers are returned as they appear in the message
+                return reader.nextString();
+        }
+    }
+
+}
@@ -17,34 +17,62 @@
 package org.polypheny.qtf.web;
 
 
-import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.StringReader;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import lombok.extern.slf4j.Slf4j;
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.handshake.ServerHandshake;
 import org.polypheny.qtf.QTFConfig;
 import org.polypheny.qtf.QueryInterface;
 import org.polypheny.qtf.fuse.ResultFS;
-import org.polypheny.qtf.fuse.ResultFS.ResultDirectory;
-import org.polypheny.qtf.fuse.ResultFS.ResultFile;
-import org.polypheny.qtf.web.Result.DbColumn;
+import org.polypheny.qtf.fuse.ResultFS.Namespace;
+import org.polypheny.qtf.web.ResultReader.RowHandler;
 
 
 @Slf4j
-public class SocketClient extends WebSocketClient {
+public class SocketClient extends WebSocketClient implements RowHandler {
 
     private final ResultFS myFuse;
-    private final Gson gson = new Gson();
     private final QueryInterface listener;
+    private final ResultCache cache;
     private Timer timer;
+    /**
+     * Requests that were sent and not answered yet. The results are received in the order
+     * the requests were sent, so each result is mounted in the namespace of the request at the head of the queue.
+     */
+    private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+    /**
+     * The request whose result is being received
+     */
+    private Pending current;
 
-    public SocketClient( URI serverURI, ResultFS fuse, QueryInterface listener ) {
+
+    private static class Pending {
+
+        final Namespace namespace;
+        /**
+         * The result is applied to the rows that are mounted already, instead of being mounted row by row
+         */
+        final boolean refresh;
+
+        Pending( Namespace namespace, boolean refresh ) {
+            this.namespace = namespace;
+            this.refresh = refresh;
+        }
+
+    }
+
+
+    public SocketClient( URI serverURI, ResultFS fuse, QueryInterface listener, ResultCache cache ) {
         super( serverURI );
         this.myFuse = fuse;
         this.listener = listener;
+        this.cache = cache;
     }
 
     @Override
@@ -52,8 +80,38 @@ public class SocketClient extends WebSocketClient {
         //nothing to do
     }
 
+    /**
+     * Send the request of a namespace, its result will be mounted in the namespace
+     */
+    public void submit( Namespace namespace ) {
+        send( new Pending( namespace, false ) );
+    }
+
+    /**
+     * Send the request of a namespace again, the namespace is updated with the changes of the result
+     */
+    public void refresh( Namespace namespace ) {
+        send( new Pending( namespace, true ) );
+    }
+
+    private void send( Pending p ) {
+        pending.add( p );
+        try {
+            send( p.namespace.getRequest() );
+        } catch ( RuntimeException e ) {
+            pending.remove( p );
+            throw e;
+        }
+    }
+
     @Override
     public void onClose( int code, String reason, boolean remote ) {
+        // requests that were not answered are lost with the connection
+        for ( Pending p = pending.poll(); p != null; p = pending.poll() ) {
+            if ( !p.refresh ) {
+                myFuse.unmount( p.namespace );
+            }
+        }
         //codes: https://tools.ietf.org/html/rfc6455#section-7.4.1
         if ( remote && code > 1000 ) {
             //when losing a connection
@@ -78,41 +136,78 @@ public class SocketClient extends WebSocketClient {
         }
     }
 
+    /**
+     * The rows of the result are added to the file system while the message is parsed,
+     * see {@link #onHeader} and {@link #onRow}
+     */
     @Override
     public void onMessage( String message ) {
+        Pending request = pending.poll();
+        if ( request == null ) {
+            log.warn( "Received a result that was not requested" );
+            return;
+        }
+        Namespace namespace = request.namespace;
+        current = request;
         Result result;
         try {
-            Result[] results = gson.fromJson( message, Result[].class );
-            result = results[0];
-        } catch ( Throwable t ) {
-            result = gson.fromJson( message, Result.class );
+            result = ResultReader.read( new StringReader( message ), this );
+        } catch ( IOException | RuntimeException e ) {
+            log.error( "Could not parse the result", e );
+            result = new Result( "Could not parse the result: " + e.getMessage() );
+        } finally {
+            current = null;
         }
         listener.onResultUpdate( result );
-        if ( result.error != null ) {
+        if ( !myFuse.isMounted( namespace ) ) {
+            log.debug( "/" + namespace.getName() + " was unmounted before its result was received." );
+            if ( result.error == null && !result.hasData() ) {
+                cache.clear();
+            }
+        } else if ( request.refresh ) {
+            // the mounted result is kept if the refresh failed
+            if ( result.error != null ) {
+                log.error( "The refresh of /" + namespace.getName() + " failed: " + result.error );
+            } else if ( result.hasData() ) {
+                cache.put( namespace.getCacheKey(), result );
+                myFuse.refresh( namespace, result );
+            }
+        } else if ( result.error != null ) {
             log.error( "The submitted query failed: " + result.error );
-            return;
+            myFuse.unmount( namespace );
+        } else if ( !result.hasData() ) {
+            // e.g. the result of an update query, there is nothing to mount
+            myFuse.unmount( namespace );
+            // it is not known which tables were changed
+            cache.clear();
+        } else {
+            cache.put( namespace.getCacheKey(), result );
+            myFuse.mounted( namespace );
         }
-        for ( int d = 0; d < result.data.length; d++ ) {
-            ResultDirectory dir = new ResultDirectory( myFuse.getRootDirectory(), result, d );
-            for ( int h = 0; h < result.header.length; h++ ) {
-                DbColumn col = result.header[h];
-                if ( result.data[d][h] == null ) {
-                    continue;
-                }
-                switch ( col.dataType ) {
-                    case "FILE":
-                    case "IMAGE":
-                    case "VIDEO":
-                    case "SOUND":
-                        dir.add( ResultFile.ofUrl( col.name, result.data[d][h], dir ) );
-                        break;
-                    default:
-                        dir.add( ResultFile.ofData( col.name, result.data[d][h], dir ) );
-                }
-            }
-            myFuse.add( dir );
+    }
+
+    @Override
+    public void onHeader( Result result ) {
+        // the result of a query on a single table, e.g. a view, can be committed to that table
+        if ( result.table == null ) {
+            result.table = current.namespace.getTable();
+        }
+        // the rows of a query are identified by the primary key of their table, which its header does not mark
+        String[] primaryKey = current.namespace.getPrimaryKey();
+        if ( primaryKey != null ) {
+            result.setPrimaryKey( primaryKey );
+        }
+        if ( !current.refresh && myFuse.isMounted( current.namespace ) ) {
+            current.namespace.setResult( result );
+        }
+    }
+
+    @Override
+    public void onRow( Result result, int ithRow ) {
+        // the rows of a namespace that was unmounted or replaced in the meantime are dropped
+        if ( !current.refresh && myFuse.isMounted( current.namespace ) ) {
+            myFuse.addRow( current.namespace, result, ithRow );
         }
-        myFuse.setResult( result );
     }
 
     @Override
@@ -17,6 +17,10 @@
 package org.polypheny.qtf.web;
 
 
+import org.polypheny.qtf.fuse.ResultFS.Layout;
+import org.polypheny.qtf.web.Result.DbColumn;
+
+
 /**
  * Models for Websocket requests
  */
@@ -25,11 +29,20 @@ public abstract class UIRequest {
     public final String requestType;
     @SuppressWarnings("unused")
     public final boolean noLimit = true;
+    /**
+     * How the result is mapped to the FS, it is not sent to the server
+     */
+    public transient Layout layout = Layout.ROWS;
 
     public UIRequest( String requestType ) {
         this.requestType = requestType;
     }
 
+    public UIRequest setLayout( Layout layout ) {
+        this.layout = layout;
+        return this;
+    }
+
     public static class TableRequest extends UIRequest {
 
         @SuppressWarnings({ "unused", "FieldCanBeLocal" })
@@ -37,11 +50,14 @@ public abstract class UIRequest {
 
         public TableRequest( String tableId ) {
             super( "TableRequest" );
-            if ( !tableId.contains( "." ) ) {
-                this.tableId = "public." + tableId;
-            } else {
-                this.tableId = tableId;
-            }
+            this.tableId = qualify( tableId );
+        }
+
+        /**
+         * @return The identifier of a table including its schema, tables without a schema are part of the public schema
+         */
+        public static String qualify( String tableId ) {
+            return tableId.contains( "." ) ? tableId : "public." + tableId;
         }
 
     }
@@ -58,6 +74,55 @@ public abstract class UIRequest {
             this.query = query;
         }
 
+        /**
+         * Build a query for the rows of a table whose columns equal the given values,
+         * e.g. SELECT * FROM "public"."orders" WHERE "status" = 'open'
+         *
+         * @return The query or null if a value is not valid for the type of its column, e.g. a word for an integer column
+         */
+        public static String select( String tableId, DbColumn[] columns, String[] values ) {
+            StringBuilder query = new StringBuilder( "SELECT * FROM " );
+            String[] names = TableRequest.qualify( tableId ).split( "\\." );
+            for ( int i = 0; i < names.length; i++ ) {
+                if ( i > 0 ) {
+                    query.append( '.' );
+                }
+                query.append( identifier( names[i] ) );
+            }
+            for ( int i = 0; i < columns.length; i++ ) {
+                String literal = literal( columns[i], values[i] );
+                if ( literal == null ) {
+                    return null;
+                }
+                query.append( i == 0 ? " WHERE " : " AND " ).append( identifier( columns[i].name ) ).append( " = " ).append( literal );
+            }
+            return query.toString();
+        }
+
+        private static String identifier( String name ) {
+            return '"' + name.replace( "\"", "\"\"" ) + '"';
+        }
+
+        /**
+         * @return The SQL literal of a value of a column or null if the value is not valid for the type of the column
+         */
+        private static String literal( DbColumn column, String value ) {
+            if ( column.isMultimedia() ) {
+                // the cells of multimedia columns are files, they cannot be compared with a value
+                return null;
+            }
+            if ( !column.isValid( value ) ) {
+                return null;
+            }
+            if ( column.isNumeric() ) {
+                return value;
+            }
+            if ( column.isBoolean() ) {
+                return value.toUpperCase();
+            }
+            return "'" + value.replace( "'", "''" ) + "'";
+        }
+
     }
 
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2019-2021 The Polypheny Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.polypheny.qtf.fuse;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import org.junit.jupiter.api.Test;
+import org.polypheny.qtf.web.Result;
+import org.polypheny.qtf.web.ResultReader;
+import org.polypheny.qtf.web.ResultReader.RowHandler;
+
+
+public class ArrowExportTest {
+
+    private static final byte[] MAGIC = "ARROW1".getBytes( StandardCharsets.US_ASCII );
+    private static final String RESULT = "{\"table\":\"public.emps\","
+            + "\"header\":[{\"name\":\"empid\",\"dataType\":\"INTEGER\",\"primary\":true},{\"name\":\"name\",\"dataType\":\"VARCHAR\"},"
+            + "{\"name\":\"active\",\"dataType\":\"BOOLEAN\"},{\"name\":\"salary\",\"dataType\":\"DOUBLE\"}],"
+            + "\"data\":[[\"1\",\"Bill\",\"true\",\"10000\"],[\"2\",\"Eric\",\"false\",\"8000.5\"],[\"3\",null,\"maybe\",null],"
+            + "[\"4\",\"Sebastian\",\"true\",\"7000\"],[\"5\",\"Theodore\",null,\"11500\"]]}";
+
+
+    private static Result read( String json ) throws IOException {
+        return ResultReader.read( new StringReader( json ), new RowHandler() {
+            @Override
+            public void onHeader( Result result ) {
+            }
+
+            @Override
+            public void onRow( Result result, int ithRow ) {
+            }
+        } );
+    }
+
+    private static ByteBuffer render( ResultExport export ) {
+        int length = (int) export.length();
+        Pointer buffer = Memory.allocate( Runtime.getSystemRuntime(), length );
+        assertEquals( length, export.read( buffer, length, 0 ) );
+        byte[] bytes = new byte[length];
+        buffer.get( 0, bytes, 0, length );
+        return ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+    }
+
+    /**
+     * @return The position of a field of a flatbuffer table or -1 if the field is not set
+     */
+    private static int field( ByteBuffer file, int table, int index ) {
+        int vtable = table - file.getInt( table );
+        int slot = 4 + 2 * index;
+        if ( slot >= file.getShort( vtable ) ) {
+            return -1;
+        }
+        int offset = file.getShort( vtable + slot );
+        return offset == 0 ? -1 : table + offset;
+    }
+
+    private static int indirect( ByteBuffer file, int position ) {
+        return position + file.getInt( position );
+    }
+
+    @Test
+    public void fileLayout() throws IOException {
+        ByteBuffer file = render( new ArrowExport( read( RESULT ), 2 ) );
+        int length = file.capacity();
+        byte[] bytes = file.array();
+        assertArrayEquals( MAGIC, Arrays.copyOfRange( bytes, 0, MAGIC.length ) );
+        assertArrayEquals( MAGIC, Arrays.copyOfRange( bytes, length - MAGIC.length, length ) );
+
+        // the schema and the record batches are encapsulated messages that are aligned to 8 bytes
+        int position = 8;
+        int[] headerTypes = new int[4];
+        long[] offsets = new long[4];
+        int[] metadataLengths = new int[4];
+        long[] bodyLengths = new long[4];
+        long[] rows = new long[4];
+        for ( int i = 0; i < 4; i++ ) {
+            assertEquals( 0, position % 8 );
+            assertEquals( 0xFFFFFFFF, file.getInt( position ) );
+            int metadataLength = file.getInt( position + 4 );
+            assertEquals( 0, metadataLength % 8 );
+            int message = indirect( file, position + 8 );
+            headerTypes[i] = file.get( field( file, message, 1 ) );
+            bodyLengths[i] = file.getLong( field( file, message, 3 ) );
+            assertEquals( 0, bodyLengths[i] % 8 );
+            if ( headerTypes[i] == 3 ) {
+                rows[i] = file.getLong( field( file, indirect( file, field( file, message, 2 ) ), 0 ) );
+            }
+            offsets[i] = position;
+            metadataLengths[i] = 8 + metadataLength;
+            position += 8 + metadataLength + (int) bodyLengths[i];
+        }
+        assertArrayEquals( new int[]{ 1, 3, 3, 3 }, headerTypes );
+        assertEquals( 0, bodyLengths[0] );
+        assertArrayEquals( new long[]{ 0, 2, 2, 1 }, rows );
+
+        // end-of-stream marker, then the footer, its length and the magic bytes
+        assertEquals( 0xFFFFFFFF, file.getInt( position ) );
+        assertEquals( 0, file.getInt( position + 4 ) );
+        int footerLength = file.getInt( length - MAGIC.length - 4 );
+        int footer = position + 8;
+        assertEquals( length - MAGIC.length - 4, footer + footerLength );
+
+        // the footer points to the record batches
+        int table = indirect( file, footer );
+        int blocks = indirect( file, field( file, table, 3 ) );
+        assertEquals( 3, file.getInt( blocks ) );
+        for ( int i = 0; i < 3; i++ ) {
+            int block = blocks + 4 + 24 * i;
+            assertEquals( offsets[i + 1], file.getLong( block ) );
+            assertEquals( metadataLengths[i + 1], file.getInt( block + 8 ) );
+            assertEquals( bodyLengths[i + 1], file.getLong( block + 16 ) );
+        }
+    }
+
+    /**
+     * @return The positions of the encapsulated record batch messages of a file
+     */
+    private static List<Integer> batches( ByteBuffer file ) {
+        List<Integer> batches = new ArrayList<>();
+        // the schema message follows the magic bytes and has no body
+        int position = 8 + 8 + file.getInt( 8 + 4 );
+        while ( file.getInt( position + 4 ) != 0 ) {
+            batches.add( position );
+            int message = indirect( file, position + 8 );
+            position += 8 + file.getInt( position + 4 ) + (int) file.getLong( field( file, message, 3 ) );
+        }
+        return batches;
+    }
+
+    private static int recordBatch( ByteBuffer file, int batch ) {
+        return indirect( file, field( file, indirect( file, batch + 8 ), 2 ) );
+    }
+
+    private static long rows( ByteBuffer file, int batch ) {
+        return file.getLong( field( file, recordBatch( file, batch ), 0 ) );
+    }
+
+    private static long nullCount( ByteBuffer file, int batch, int column ) {
+        int nodes = indirect( file, field( file, recordBatch( file, batch ), 1 ) );
+        return file.getLong( nodes + 4 + 16 * column + 8 );
+    }
+
+    /**
+     * @return The position of a buffer of a batch in the file
+     */
+    private static int buffer( ByteBuffer file, int batch, int index ) {
+        int buffers = indirect( file, field( file, recordBatch( file, batch ), 2 ) );
+        int body = batch + 8 + file.getInt( batch + 4 );
+        return body + (int) file.getLong( buffers + 4 + 16 * index );
+    }
+
+    private static String string( ByteBuffer file, int batch, int offsets, int data, int row ) {
+        int from = file.getInt( buffer( file, batch, offsets ) + 4 * row );
+        int to = file.getInt( buffer( file, batch, offsets ) + 4 * (row + 1) );
+        byte[] bytes = new byte[to - from];
+        file.get( buffer( file, batch, data ) + from, bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    @Test
+    public void batchesHoldValues() throws IOException {
+        ByteBuffer file = render( new ArrowExport( read( RESULT ), 10 ) );
+        List<Integer> batches = batches( file );
+        assertEquals( 1, batches.size() );
+        int batch = batches.get( 0 );
+        assertEquals( 5, rows( file, batch ) );
+        // "maybe" is not a boolean
+        assertEquals( 0, nullCount( file, batch, 0 ) );
+        assertEquals( 1, nullCount( file, batch, 1 ) );
+        assertEquals( 2, nullCount( file, batch, 2 ) );
+        assertEquals( 1, nullCount( file, batch, 3 ) );
+
+        // empid: validity and values
+        assertEquals( 0b11111, file.get( buffer( file, batch, 0 ) ) );
+        for ( int i = 0; i < 5; i++ ) {
+            assertEquals( i + 1, file.getInt( buffer( file, batch, 1 ) + 4 * i ) );
+        }
+        // name: validity, offsets and data
+        assertEquals( 0b11011, file.get( buffer( file, batch, 2 ) ) );
+        int[] offsets = new int[6];
+        for ( int i = 0; i < offsets.length; i++ ) {
+            offsets[i] = file.getInt( buffer( file, batch, 3 ) + 4 * i );
+        }
+        assertArrayEquals( new int[]{ 0, 4, 8, 8, 17, 25 }, offsets );
+        assertEquals( "Sebastian", string( file, batch, 3, 4, 3 ) );
+        assertEquals( "", string( file, batch, 3, 4, 2 ) );
+        // active: validity and bits
+        assertEquals( 0b01011, file.get( buffer( file, batch, 5 ) ) );
+        assertEquals( 0b01001, file.get( buffer( file, batch, 6 ) ) );
+        // salary: validity and values
+        assertEquals( 0b11011, file.get( buffer( file, batch, 7 ) ) );
+        double[] salaries = new double[5];
+        for ( int i = 0; i < salaries.length; i++ ) {
+            salaries[i] = file.getDouble( buffer( file, batch, 8 ) + 8 * i );
+        }
+        assertArrayEquals( new double[]{ 10000, 8000.5, 0, 7000, 11500 }, salaries );
+    }
+
+    @Test
+    public void batchesAreLimitedByBytes() throws IOException {
+        Result result = read( RESULT );
+        // a batch of the result holds the padding of 67 bytes and 21 bytes per row plus the names
+        ByteBuffer file = render( new ArrowExport( result, 10, 130 ) );
+        List<Integer> batches = batches( file );
+        long[] rows = new long[batches.size()];
+        for ( int b = 0; b < rows.length; b++ ) {
+            rows[b] = rows( file, batches.get( b ) );
+            int message = indirect( file, batches.get( b ) + 8 );
+            assertTrue( file.getLong( field( file, message, 3 ) ) <= 130 );
+        }
+        assertArrayEquals( new long[]{ 2, 2, 1 }, rows );
+        assertEquals( "Sebastian", string( file, batches.get( 1 ), 3, 4, 1 ) );
+        assertEquals( "Theodore", string( file, batches.get( 2 ), 3, 4, 0 ) );
+
+        // a row that exceeds the limit on its own gets a batch of its own
+        file = render( new ArrowExport( result, 10, 1 ) );
+        assertEquals( 5, batches( file ).size() );
+    }
+
+    @Test
+    public void batchesHoldRows() throws IOException {
+        Result result = read( RESULT );
+        assertThrows( IllegalArgumentException.class, () -> new ArrowExport( result, 0 ) );
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019-2021 The Polypheny Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.polypheny.qtf.fuse;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import org.junit.jupiter.api.Test;
+import org.polypheny.qtf.fuse.ResultFS.Namespace;
+import org.polypheny.qtf.web.BatchUpdateRequest;
+import org.polypheny.qtf.web.Result;
+import org.polypheny.qtf.web.ResultReader;
+import org.polypheny.qtf.web.ResultReader.RowHandler;
+
+
+public class NamespaceTest {
+
+    private static final String RESULT = "{\"table\":\"public.depts\","
+            + "\"header\":[{\"name\":\"deptno\",\"dataType\":\"INTEGER\",\"primary\":true},{\"name\":\"name\",\"dataType\":\"VARCHAR\"}],"
+            + "\"data\":[[\"1\",\"Sales\"],[\"2\",\"Marketing\"],[\"3\",\"HR\"]]}";
+
+
+    private static Result read( String json ) throws IOException {
+        return ResultReader.read( new StringReader( json ), new RowHandler() {
+            @Override
+            public void onHeader( Result result ) {
+            }
+
+            @Override
+            public void onRow( Result result, int ithRow ) {
+            }
+        } );
+    }
+
+    private static void write( ResultFS fs, String path, String text ) {
+        byte[] bytes = text.getBytes( StandardCharsets.UTF_8 );
+        Pointer buffer = Memory.allocate( Runtime.getSystemRuntime(), bytes.length );
+        buffer.put( 0, bytes, 0, bytes.length );
+        assertEquals( bytes.length, fs.write( path, buffer, bytes.length, 0, null ) );
+    }
+
+    private static Namespace mount( ResultFS fs ) throws IOException {
+        Namespace namespace = fs.addNamespace( "depts" );
+        fs.mountResult( namespace, read( RESULT ) );
+        return namespace;
+    }
+
+    @Test
+    public void committedChangesAreNotPending() throws IOException {
+        ResultFS fs = new ResultFS();
+        Namespace namespace = mount( fs );
+        write( fs, "/depts/0/name.txt", "Sales and Marketing" );
+        write( fs, "/depts/2/name.txt", "People" );
+        assertEquals( 2, namespace.getPendingChanges() );
+
+        BatchUpdateRequest request = namespace.getBatchUpdateRequest();
+        assertEquals( 2, request.getUpdates().size() );
+        namespace.committed( request );
+        assertEquals( 0, namespace.getPendingChanges() );
+        assertEquals( 0, fs.getPendingChanges() );
+
+        // the next commit only contains new changes
+        write( fs, "/depts/1/name.txt", "Ads" );
+        assertEquals( 1, namespace.getBatchUpdateRequest().getUpdates().size() );
+    }
+
+    @Test
+    public void changesDuringCommitStayPending() throws IOException {
+        ResultFS fs = new ResultFS();
+        Namespace namespace = mount( fs );
+        write( fs, "/depts/0/name.txt", "Sales and Marketing" );
+        write( fs, "/depts/2/name.txt", "People" );
+
+        BatchUpdateRequest request = namespace.getBatchUpdateRequest();
+        write( fs, "/depts/2/name.txt", "People and Culture" );
+        namespace.committed( request );
+        assertEquals( 1, namespace.getPendingChanges() );
+        assertEquals( 2, namespace.getBatchUpdateRequest().getUpdates().get( 0 ).getIthRow() );
+    }
+
+    @Test
+    public void committedValuesAreWrittenIntoTheResult() throws IOException {
+        ResultFS fs = new ResultFS();
+        Namespace namespace = mount( fs );
+        assertEquals( 0, fs.truncate( "/depts/1/name.txt", 0 ) );
+        write( fs, "/depts/1/name.txt", "Ads" );
+        assertEquals( 0, fs.unlink( "/depts/2/name.txt" ) );
+
+        namespace.committed( namespace.getBatchUpdateRequest() );
+        Result result = namespace.getResult();
+        assertEquals( "Ads", result.getValue( 1, 1 ) );
+        assertTrue( result.isNull( 2, 1 ) );
+        assertEquals( "Sales", result.getValue( 0, 1 ) );
+    }
+
+    @Test
+    public void committedBatchesAreNotPending() throws IOException {
+        ResultFS fs = new ResultFS();
+        Namespace namespace = mount( fs );
+        write( fs, "/depts/0/name.txt", "Sales and Marketing" );
+        write( fs, "/depts/2/name.txt", "People" );
+
+        // only the first batch was committed before the commit failed
+        List<BatchUpdateRequest> batches = namespace.getBatchUpdateRequest().split( 1, Long.MAX_VALUE );
+        assertEquals( 2, batches.size() );
+        namespace.committed( batches.get( 0 ) );
+        assertEquals( 1, namespace.getPendingChanges() );
+        assertEquals( 2, namespace.getBatchUpdateRequest().getUpdates().get( 0 ).getIthRow() );
+    }
+
+}